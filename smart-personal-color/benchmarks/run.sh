@@ -0,0 +1,17 @@
+#!/bin/sh
+# Compiles the platform-neutral core together with the benchmark and runs it
+# on the desktop JVM, after CoreCheck has tested the core against known values
+# and MatteCheck has confirmed that parallel and serial matting and refine give
+# identical alpha. Arguments are passed to PipelineBenchmark, e.g.
+#   ./run.sh --compare baseline.tsv
+#   ./run.sh --write baseline.tsv
+set -e
+cd "$(dirname "$0")"
+OUT=build/classes
+rm -rf "$OUT"
+mkdir -p "$OUT"
+javac -encoding UTF-8 -Xlint:all -d "$OUT" \
+    $(find ../src/com/iagolirapassos/smartpersonalcolor/core src -name '*.java')
+java -cp "$OUT" com.iagolirapassos.smartpersonalcolor.bench.CoreCheck
+java -cp "$OUT" com.iagolirapassos.smartpersonalcolor.bench.MatteCheck
+exec java -Xms512m -Xmx512m -cp "$OUT" com.iagolirapassos.smartpersonalcolor.bench.PipelineBenchmark "$@"
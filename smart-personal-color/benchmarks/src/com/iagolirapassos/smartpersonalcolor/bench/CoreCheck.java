@@ -0,0 +1,263 @@
+package com.iagolirapassos.smartpersonalcolor.bench;
+
+import com.iagolirapassos.smartpersonalcolor.core.CieLab;
+import com.iagolirapassos.smartpersonalcolor.core.ColorMath;
+import com.iagolirapassos.smartpersonalcolor.core.FaceSegmentation;
+import com.iagolirapassos.smartpersonalcolor.core.FrameConverter;
+import com.iagolirapassos.smartpersonalcolor.core.Region;
+import com.iagolirapassos.smartpersonalcolor.core.SeasonModel;
+import com.iagolirapassos.smartpersonalcolor.core.Workspace;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks of the platform-neutral core against known values: the Skia HSV
+ * conversions, CIELAB and the CIEDE2000 pairs of Sharma, Wu and Dalal
+ * (2005), the season table parser and scorer, face segmentation on a
+ * drawn portrait and NV21 conversion of frames with odd dimensions. run.sh runs it before the benchmark; it exits with status
+ * 1 on the first failure.
+ *
+ * Usage: CoreCheck
+ */
+public final class CoreCheck {
+
+    private static int checks;
+
+    private CoreCheck() {
+    }
+
+    public static void main(String[] args) {
+        colorMath();
+        cieLab();
+        seasonModel();
+        faceSegmentation();
+        frameConverter();
+        System.out.println("CoreCheck: " + checks + " checks passed");
+    }
+
+    private static void colorMath() {
+        expect("hsvToColor red", 0xFFFF0000, ColorMath.hsvToColor(0f, 1f, 1f));
+        expect("hsvToColor green", 0xFF00FF00, ColorMath.hsvToColor(120f, 1f, 1f));
+        expect("hsvToColor blue", 0xFF0000FF, ColorMath.hsvToColor(240f, 1f, 1f));
+        expect("hsvToColor hue 360 wraps", 0xFFFF0000, ColorMath.hsvToColor(360f, 1f, 1f));
+        // Skia treats saturations within SK_ScalarNearlyZero as gray; a plain s <= 0 test would give 0xFF656464
+        expect("hsvToColor nearly gray", 0xFF656565, ColorMath.hsvToColor(0f, 1f / 4096, 100.52f / 255));
+        expect("hsvToColor clamps", 0xFFFFFFFF, ColorMath.hsvToColor(0f, -1f, 2f));
+
+        float[] hsv = ColorMath.rgbToHsv(255, 128, 0);
+        near("rgbToHsv hue", 30.117647f, hsv[0], 1e-4f);
+        near("rgbToHsv saturation", 1f, hsv[1], 0f);
+        near("rgbToHsv value", 1f, hsv[2], 0f);
+        hsv = ColorMath.rgbToHsv(90, 90, 90);
+        near("rgbToHsv gray hue", 0f, hsv[0], 0f);
+        near("rgbToHsv gray saturation", 0f, hsv[1], 0f);
+
+        // Every color survives a round trip through HSV
+        for (int r = 0; r < 256; r += 5) {
+            for (int g = 0; g < 256; g += 5) {
+                for (int b = 0; b < 256; b += 5) {
+                    ColorMath.rgbToHsv(r, g, b, hsv);
+                    int c = ColorMath.hsvToColor(hsv[0], hsv[1], hsv[2]);
+                    if (c != (0xFF000000 | r << 16 | g << 8 | b)) {
+                        fail("HSV round trip of " + r + "," + g + "," + b, Integer.toHexString(c));
+                    }
+                }
+            }
+        }
+        checks++;
+
+        expect("toHex", "#0A1BFF", ColorMath.toHex(0xFF0A1BFF));
+    }
+
+    private static void cieLab() {
+        nearLab("white", new float[]{100f, 0f, 0f}, CieLab.rgbToLab(255, 255, 255), 0.05f);
+        nearLab("black", new float[]{0f, 0f, 0f}, CieLab.rgbToLab(0, 0, 0), 0.05f);
+        nearLab("red", new float[]{53.24f, 80.09f, 67.20f}, CieLab.rgbToLab(255, 0, 0), 0.05f);
+        nearLab("skin", new float[]{66.536f, 13.915f, 19.266f}, CieLab.rgbToLab(198, 152, 128), 0.05f);
+
+        float[] lab = CieLab.rgbToLab(0, 0, 255);
+        near("chroma", (float) Math.hypot(lab[1], lab[2]), CieLab.chroma(lab), 1e-4f);
+        near("hue of blue", 306.29f, CieLab.hue(lab), 0.05f);
+
+        // The plane conversion agrees with the single-color one
+        Random rnd = new Random(7);
+        int[] px = new int[4096];
+        for (int i = 0; i < px.length; i++) px[i] = 0xFF000000 | rnd.nextInt(1 << 24);
+        float[] l = new float[px.length], a = new float[px.length], b = new float[px.length];
+        CieLab.toLab(px, 0, px.length, l, a, b);
+        for (int i = 0; i < px.length; i++) {
+            float[] ref = CieLab.rgbToLab((px[i] >> 16) & 0xFF, (px[i] >> 8) & 0xFF, px[i] & 0xFF);
+            nearLab("toLab pixel " + i, ref, new float[]{l[i], a[i], b[i]}, 0.05f);
+        }
+
+        // Sharma, Wu and Dalal, "The CIEDE2000 color-difference formula", table 1
+        float[][] pairs = {
+                {50f, 2.6772f, -79.7751f, 50f, 0f, -82.7485f, 2.0425f},
+                {50f, 3.1571f, -77.2803f, 50f, 0f, -82.7485f, 2.8615f},
+                {50f, 0f, 0f, 50f, -1f, 2f, 2.3669f},
+                {50f, 2.49f, -0.001f, 50f, -2.49f, 0.0009f, 7.1792f},
+                {50f, 2.5f, 0f, 73f, 25f, -18f, 27.1492f},
+                {50f, 2.5f, 0f, 58f, 24f, 15f, 19.4535f},
+                {60.2574f, -34.0099f, 36.2677f, 60.4626f, -34.1751f, 39.4387f, 1.2644f},
+                {22.7233f, 20.0904f, -46.694f, 23.0331f, 14.973f, -42.5619f, 2.0373f},
+                {90.8027f, -2.0831f, 1.441f, 91.1528f, -1.6435f, 0.0447f, 1.4441f},
+                {2.0776f, 0.0795f, -1.135f, 0.9033f, -0.0636f, -0.5514f, 0.9082f},
+        };
+        for (float[] p : pairs) {
+            float[] lab1 = {p[0], p[1], p[2]};
+            float[] lab2 = {p[3], p[4], p[5]};
+            near("deltaE2000 " + p[6], p[6], CieLab.deltaE2000(lab1, lab2), 1e-3f);
+            near("deltaE2000 symmetric " + p[6], p[6], CieLab.deltaE2000(lab2, lab1), 1e-3f);
+        }
+    }
+
+    private static void seasonModel() {
+        SeasonModel model = SeasonModel.defaults();
+        expect("default seasons", 12, model.size());
+        near("default neutral hue", 50f, model.neutralHue(), 0f);
+
+        // A color on a centroid scores that season best, and the confidences sum to 1
+        SeasonModel two = SeasonModel.parse("weights,1,1,1,1,1\ntemperature,0.05\n"
+                + "A,a,cat_a,0.5,0.5,0.5,0.5,0.5\nB,b,cat_b,-0.5,0.5,0.5,0.5,0.5\n");
+        float[] confidence = new float[two.size()];
+        expect("nearest centroid", 1, two.score(new float[]{-0.5f, 0.5f, 0.5f, 0.5f, 0.5f}, confidence));
+        near("confidence sum", 1f, confidence[0] + confidence[1], 1e-6f);
+        near("softmax", (float) (1 / (1 + Math.exp(-1 / 0.05))), confidence[1], 1e-6f);
+
+        float[] c = {0.1f, 0.4f, 0.2f, 0.3f};
+        int[] top = new int[3];
+        SeasonModel.topK(c, c.length, 3, top);
+        expect("topK first", 1, top[0]);
+        expect("topK second", 3, top[1]);
+        expect("topK third", 2, top[2]);
+
+        rejects("NaN weight", "weights,NaN,1,1,1,1\nA,a,a,0,0,0,0,0");
+        rejects("infinite centroid", "A,a,a,0,Infinity,0,0,0");
+        rejects("four values", "A,a,a,0,0,0,0");
+        rejects("zero hue span", "undertone,50,0,72,8,28\nA,a,a,0,0,0,0,0");
+        rejects("zero temperature", "temperature,0\nA,a,a,0,0,0,0,0");
+        rejects("no season", "# nothing\n");
+    }
+
+    private static void faceSegmentation() {
+        int w = 400, h = 532;
+        int eye = 0x32465A, hair = 0x3C2A1E;
+        int[] frame = drawnPortrait(w, h, eye, hair);
+        Region face = Region.face(w / 2f, h * 0.45f, w * 0.18f, w, h);
+        Workspace ws = new Workspace();
+        FaceSegmentation segmentation = ws.segmentation();
+        segmentation.segment(frame, w, face, ws.histogram());
+        segmentation.labelFeatures(frame, w, face);
+        if (segmentation.skinConfidence() < 0.5f) fail("skin confidence", "" + segmentation.skinConfidence());
+        checks++;
+        nearColor("skin color", 0xC68C73, segmentation.skinColor(), 12);
+        nearColor("eye color", eye, segmentation.eyeColor(), 8);
+        nearColor("hair color", hair, segmentation.hairColor(), 8);
+
+        // Boxes one pixel wide or tall have an empty central grid and fall back to the average
+        for (Region thin : new Region[]{new Region(10, 10, 11, 60), new Region(10, 10, 60, 11),
+                new Region(10, 10, 11, 11)}) {
+            segmentation.segment(frame, w, thin, ws.histogram());
+            segmentation.labelFeatures(frame, w, thin);
+            near("thin box confidence", 0f, segmentation.skinConfidence(), 0f);
+        }
+    }
+
+    private static void frameConverter() {
+        // 5x3 NV21: gray luma, strong chroma in the first chroma row and neutral chroma in the second
+        int w = 5, h = 3, stride = 6;
+        byte[] nv21 = new byte[w * h + stride * 2];
+        Arrays.fill(nv21, 0, w * h, (byte) 128);
+        for (int i = 0; i < stride; i += 2) {
+            nv21[w * h + i] = (byte) 255;
+            nv21[w * h + i + 1] = (byte) 40;
+            nv21[w * h + stride + i] = (byte) 128;
+            nv21[w * h + stride + i + 1] = (byte) 128;
+        }
+        int outW = FrameConverter.outputWidth(w, h, 1, 0);
+        int[] out = new int[outW * FrameConverter.outputHeight(w, h, 1, 0)];
+        FrameConverter.nv21ToArgb(nv21, w, h, 1, 0, out);
+        for (int x = 0; x < outW; x++) {
+            expect("nv21 odd width, neutral chroma at column " + x, 0xFF828282, out[2 * outW + x]);
+            if ((out[x] >> 16 & 0xFF) <= (out[x] & 0xFF)) {
+                fail("nv21 strong chroma at column " + x, ColorMath.toHex(out[x]));
+            }
+        }
+        checks++;
+    }
+
+    /**
+     * Noisy skin ellipse on a noisy gray-blue wall, hair over the top of
+     * the head and two eyes on the eye line Region.face assumes.
+     */
+    private static int[] drawnPortrait(int w, int h, int eye, int hair) {
+        Random rnd = new Random(3);
+        int[] px = new int[w * h];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                double dx = (x - w * 0.5) / (w * 0.30), dy = (y - h * 0.45) / (h * 0.32);
+                double hy = (y - h * 0.40) / (h * 0.34);
+                int c;
+                if (dx * dx + dy * dy < 1) {
+                    boolean onEye = Math.abs(y - h * 0.405) < h * 0.012
+                            && Math.abs(Math.abs(x - w * 0.5) - w * 0.09) < w * 0.025;
+                    c = onEye ? eye : 0xC68C73 + (rnd.nextInt(9) << 16) + (rnd.nextInt(9) << 8) + rnd.nextInt(9);
+                } else if (dx * dx / 1.2 + hy * hy < 1.1 && y < h * 0.45) {
+                    c = hair;
+                } else {
+                    c = 0x96A0AA + (rnd.nextInt(33) << 16) + (rnd.nextInt(33) << 8) + rnd.nextInt(33);
+                }
+                px[y * w + x] = 0xFF000000 | c;
+            }
+        }
+        return px;
+    }
+
+    private static void rejects(String name, String table) {
+        checks++;
+        try {
+            SeasonModel.parse(table);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        fail(name, "table accepted");
+    }
+
+    private static void expect(String name, int expected, int actual) {
+        checks++;
+        if (expected != actual) fail(name, expected + " expected, " + actual + " found");
+    }
+
+    private static void expect(String name, String expected, String actual) {
+        checks++;
+        if (!expected.equals(actual)) fail(name, expected + " expected, " + actual + " found");
+    }
+
+    private static void near(String name, float expected, float actual, float tolerance) {
+        checks++;
+        if (!(Math.abs(expected - actual) <= tolerance)) {
+            fail(name, expected + " expected, " + actual + " found");
+        }
+    }
+
+    private static void nearLab(String name, float[] expected, float[] actual, float tolerance) {
+        for (int i = 0; i < 3; i++) near(name + " [" + "Lab".charAt(i) + "]", expected[i], actual[i], tolerance);
+    }
+
+    private static void nearColor(String name, int expected, int[] rgb, int tolerance) {
+        checks++;
+        for (int i = 0; i < 3; i++) {
+            int e = (expected >> (16 - 8 * i)) & 0xFF;
+            if (Math.abs(e - rgb[i]) > tolerance) {
+                fail(name, ColorMath.toHex(expected) + " expected, "
+                        + ColorMath.toHex(rgb[0] << 16 | rgb[1] << 8 | rgb[2]) + " found");
+            }
+        }
+    }
+
+    private static void fail(String name, String detail) {
+        System.err.println("CoreCheck: " + name + " failed, " + detail);
+        System.exit(1);
+    }
+}
@@ -0,0 +1,127 @@
+package com.iagolirapassos.smartpersonalcolor.bench;
+
+import com.iagolirapassos.smartpersonalcolor.core.BackgroundMatte;
+import com.iagolirapassos.smartpersonalcolor.core.ColorMath;
+import com.iagolirapassos.smartpersonalcolor.core.ColorSampler;
+import com.iagolirapassos.smartpersonalcolor.core.FaceSegmentation;
+import com.iagolirapassos.smartpersonalcolor.core.MatteSource;
+import com.iagolirapassos.smartpersonalcolor.core.MattingParams;
+import com.iagolirapassos.smartpersonalcolor.core.Region;
+import com.iagolirapassos.smartpersonalcolor.core.Workspace;
+
+import java.util.Arrays;
+
+/**
+ * Checks that the matting variants agree bit for bit on the synthetic
+ * portraits of PipelineBenchmark: parallel against serial for the
+ * fixed-point and float paths and the blur, and refine against
+ * removeBackground with the same parameters, with and without a
+ * segmentation. run.sh runs it before the benchmark; it exits with status 1
+ * on the first mismatch.
+ *
+ * Usage: MatteCheck
+ */
+public final class MatteCheck {
+
+    // The odd width puts band edges of the parallel passes off the blur and cell grids
+    private static final int[] WIDTHS = {240, 601, 1200};
+
+    private static int checks;
+
+    private MatteCheck() {
+    }
+
+    public static void main(String[] args) {
+        for (int w : WIDTHS) {
+            int h = w * 4 / 3;
+            int[] frame = PipelineBenchmark.syntheticPortrait(w, h, 42);
+            Region face = Region.face(w / 2f, h * 0.45f, w * 0.18f, w, h);
+            Workspace ws = new Workspace();
+            int[] skin = new int[3];
+            ColorSampler.sampleSkin(frame, w, face, ws.histogram(), skin);
+            float[] skinHsv = ColorMath.rgbToHsv(skin[0], skin[1], skin[2]);
+            FaceSegmentation segmentation = new FaceSegmentation();
+            segmentation.segment(frame, w, face, ws.histogram());
+            // The engine mattes a segmented face against the segmentation's skin color
+            int[] segSkin = segmentation.skinColor();
+            float[] segSkinHsv = ColorMath.rgbToHsv(segSkin[0], segSkin[1], segSkin[2]);
+            MattingParams tighter = new MattingParams(20f, 0.18f, 0.2f, 0.75f, 1.1f, 5);
+            String size = "@" + w + "x" + h;
+
+            for (boolean fixedPoint : new boolean[]{true, false}) {
+                String path = (fixedPoint ? ".fixed" : ".float") + size;
+                for (MattingParams params : new MattingParams[]{MattingParams.DEFAULT, tighter}) {
+                    String p = params == MattingParams.DEFAULT ? "" : ".tighter";
+
+                    int[] serial = matte(frame, w, face, skinHsv, params, null, ws, false, fixedPoint);
+                    expect("removeBackground.parallel" + p + path, serial,
+                            matte(frame, w, face, skinHsv, params, null, ws, true, fixedPoint));
+                    // A fresh source per path, so both the serial and the parallel plane builds are covered
+                    expect("refine" + p + path, serial,
+                            refine(new MatteSource(frame, w, face, skinHsv), params, ws, false, fixedPoint));
+                    expect("refine.parallel" + p + path, serial,
+                            refine(new MatteSource(frame, w, face, skinHsv), params, ws, true, fixedPoint));
+
+                    int[] segmented = matte(frame, w, face, segSkinHsv, params, segmentation, ws, false, fixedPoint);
+                    expect("removeBackground.segmented.parallel" + p + path, segmented,
+                            matte(frame, w, face, segSkinHsv, params, segmentation, ws, true, fixedPoint));
+                    expect("refine.segmented" + p + path, segmented,
+                            refine(new MatteSource(frame, w, face, segmentation), params, ws, false, fixedPoint));
+                    expect("refine.segmented.parallel" + p + path, segmented,
+                            refine(new MatteSource(frame, w, face, segmentation), params, ws, true, fixedPoint));
+                }
+            }
+
+            float[] alpha = new float[face.width() * face.height()];
+            for (int i = 0; i < alpha.length; i++) alpha[i] = (i * 31 % 97) / 96f;
+            int radius = Math.max(2, Math.min(face.width(), face.height()) / 28);
+            float[] serial = BackgroundMatte.boxBlurAlpha(alpha, face.width(), face.height(), radius, 3, false);
+            float[] parallel = BackgroundMatte.boxBlurAlpha(alpha, face.width(), face.height(), radius, 3, true);
+            checks++;
+            if (!Arrays.equals(serial, parallel)) {
+                fail("boxBlurAlpha.parallel" + size, firstDifference(serial, parallel));
+            }
+        }
+        System.out.println("MatteCheck: " + checks + " checks passed");
+    }
+
+    private static int[] matte(int[] frame, int stride, Region face, float[] skinHsv, MattingParams params,
+                               FaceSegmentation segmentation, Workspace ws, boolean parallel, boolean fixedPoint) {
+        int[] out = new int[face.width() * face.height()];
+        BackgroundMatte.removeBackground(frame, stride, face, skinHsv, params, segmentation, ws, out,
+                parallel, fixedPoint);
+        return out;
+    }
+
+    private static int[] refine(MatteSource source, MattingParams params, Workspace ws,
+                                boolean parallel, boolean fixedPoint) {
+        int[] out = new int[source.width() * source.height()];
+        BackgroundMatte.refine(source, params, ws, out, parallel, fixedPoint);
+        return out;
+    }
+
+    private static void expect(String name, int[] expected, int[] actual) {
+        checks++;
+        if (Arrays.equals(expected, actual)) return;
+        for (int i = 0; i < expected.length; i++) {
+            if (expected[i] != actual[i]) {
+                fail(name, "pixel " + i + ": " + Integer.toHexString(expected[i])
+                        + " expected, " + Integer.toHexString(actual[i]) + " found");
+            }
+        }
+    }
+
+    private static String firstDifference(float[] expected, float[] actual) {
+        for (int i = 0; i < expected.length; i++) {
+            if (Float.compare(expected[i], actual[i]) != 0) {
+                return "index " + i + ": " + expected[i] + " expected, " + actual[i] + " found";
+            }
+        }
+        return "lengths differ";
+    }
+
+    private static void fail(String name, String detail) {
+        System.err.println("MatteCheck: " + name + " does not match its reference, " + detail);
+        System.exit(1);
+    }
+}
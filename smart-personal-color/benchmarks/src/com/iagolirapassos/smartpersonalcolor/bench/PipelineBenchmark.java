@@ -0,0 +1,486 @@
+package com.iagolirapassos.smartpersonalcolor.bench;
+
+import com.iagolirapassos.smartpersonalcolor.core.BackgroundMatte;
+import com.iagolirapassos.smartpersonalcolor.core.CieLab;
+import com.iagolirapassos.smartpersonalcolor.core.ColorMath;
+import com.iagolirapassos.smartpersonalcolor.core.ColorSampler;
+import com.iagolirapassos.smartpersonalcolor.core.FaceSegmentation;
+import com.iagolirapassos.smartpersonalcolor.core.FeatureAnalyzer;
+import com.iagolirapassos.smartpersonalcolor.core.MatteSource;
+import com.iagolirapassos.smartpersonalcolor.core.MattingParams;
+import com.iagolirapassos.smartpersonalcolor.core.PaletteBuilder;
+import com.iagolirapassos.smartpersonalcolor.core.Region;
+import com.iagolirapassos.smartpersonalcolor.core.SeasonClassifier;
+import com.iagolirapassos.smartpersonalcolor.core.Workspace;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Per-stage benchmark of the analysis engine on synthetic ARGB frames.
+ *
+ * Each benchmark runs in a fresh JVM, so JIT profiles from one stage never
+ * leak into the next, through warm-up iterations and then timed iterations
+ * of a fixed duration. The report gives the mean time per operation, its
+ * standard deviation across iterations and the bytes the benchmark thread
+ * allocated per operation (work done on Parallel's pool threads is timed
+ * but its allocations are not counted). Results can be written as a
+ * baseline and later compared against it.
+ *
+ * Usage: PipelineBenchmark [--quick] [--write FILE] [--compare FILE]
+ *                          [--threshold PERCENT] [--filter TEXT]
+ */
+public final class PipelineBenchmark {
+
+    private static final int[] WIDTHS = {240, 600, 1200};
+
+    // Work that must not be optimized away ends up here
+    static volatile long sink;
+
+    private interface Op {
+        void run();
+    }
+
+    private static final class Bench {
+        final String name;
+        final Op op;
+
+        Bench(String name, Op op) {
+            this.name = name;
+            this.op = op;
+        }
+    }
+
+    private static final class Score {
+        final double nsPerOp;
+        final double error;
+        final double bytesPerOp;
+
+        Score(double nsPerOp, double error, double bytesPerOp) {
+            this.nsPerOp = nsPerOp;
+            this.error = error;
+            this.bytesPerOp = bytesPerOp;
+        }
+    }
+
+    // Warm-up is long on purpose: on small machines C2 competes with the
+    // benchmark thread and String-heavy stages need ~2 s to reach steady state
+    private static final int WARMUP_ITERATIONS = 15;
+    private static final long WARMUP_NANOS = 200000000L;
+
+    private static int measureIterations = 10;
+    private static long iterationNanos = 200000000L;
+
+    private static final Pattern CPUS = Pattern.compile("(\\d+) cpus$");
+
+    // Cores of the machine that recorded the baseline read by --compare, 0 when unknown
+    private static int baselineCpus;
+
+    private PipelineBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        String write = null, compare = null, filter = null, fork = null;
+        boolean quick = false;
+        double threshold = 15;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--quick")) {
+                quick = true;
+                measureIterations = 5;
+                iterationNanos = 100000000L;
+            } else if (args[i].equals("--fork")) {
+                fork = args[++i];
+            } else if (args[i].equals("--write")) {
+                write = args[++i];
+            } else if (args[i].equals("--compare")) {
+                compare = args[++i];
+            } else if (args[i].equals("--threshold")) {
+                threshold = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("--filter")) {
+                filter = args[++i];
+            } else {
+                System.err.println("Unknown option " + args[i]);
+                System.exit(2);
+            }
+        }
+
+        if (fork != null) {
+            runForked(fork);
+            return;
+        }
+
+        Map<String, Score> baseline = compare != null ? read(new File(compare)) : null;
+        Map<String, Score> scores = new LinkedHashMap<>();
+        int regressions = 0;
+        // Parallel timings only compare against a baseline recorded with as many cores
+        int cpus = Runtime.getRuntime().availableProcessors();
+        boolean sameCpus = baselineCpus == 0 || baselineCpus == cpus;
+        if (baseline != null && !sameCpus) {
+            System.out.println("Baseline recorded with " + baselineCpus + " cpus, this machine has " + cpus
+                    + "; parallel benchmarks are not compared");
+        }
+
+        System.out.printf(Locale.US, "%-34s %12s %10s %12s%s%n", "Benchmark", "us/op", "+-", "B/op",
+                baseline != null ? "   vs baseline" : "");
+        for (Bench b : benchmarks()) {
+            if (filter != null && !b.name.contains(filter)) continue;
+            Score s = fork(b.name, quick);
+            scores.put(b.name, s);
+
+            String delta = "";
+            if (baseline != null && !sameCpus && b.name.contains(".parallel")) {
+                delta = "   (" + baselineCpus + " cpus)";
+            } else if (baseline != null && baseline.containsKey(b.name)) {
+                double pct = (s.nsPerOp / baseline.get(b.name).nsPerOp - 1) * 100;
+                delta = String.format(Locale.US, "   %+6.1f%%", pct);
+                if (pct > threshold) {
+                    delta += "  REGRESSION";
+                    regressions++;
+                }
+            }
+            System.out.printf(Locale.US, "%-34s %12.2f %10.2f %12.0f%s%n",
+                    b.name, s.nsPerOp / 1000, s.error / 1000, s.bytesPerOp, delta);
+        }
+
+        if (write != null) write(new File(write), scores);
+        if (regressions > 0) {
+            System.out.println(regressions + " benchmark(s) slower than the baseline by more than "
+                    + threshold + "%");
+            System.exit(1);
+        }
+    }
+
+    private static List<Bench> benchmarks() {
+        List<Bench> list = new ArrayList<>();
+
+        for (final int w : WIDTHS) {
+            final int h = w * 4 / 3;
+            final int[] frame = syntheticPortrait(w, h, 42);
+            final Region face = Region.face(w / 2f, h * 0.45f, w * 0.18f, w, h);
+            final Workspace ws = new Workspace();
+            final int[] skin = new int[3];
+            ColorSampler.sampleSkin(frame, w, face, ws.histogram(), skin);
+            final float[] skinHsv = ColorMath.rgbToHsv(skin[0], skin[1], skin[2]);
+            final FaceSegmentation segmentation = new FaceSegmentation();
+            segmentation.segment(frame, w, face, ws.histogram());
+            segmentation.labelFeatures(frame, w, face);
+            final int[] eye = segmentation.eyeColor().clone();
+            final int[] hair = segmentation.hairColor().clone();
+            final int[] sampled = new int[3];
+            final int[] out = new int[face.width() * face.height()];
+            final float[] alpha = new float[face.width() * face.height()];
+            for (int i = 0; i < alpha.length; i++) alpha[i] = (i * 31 % 97) / 96f;
+            final int radius = Math.max(2, Math.min(face.width(), face.height()) / 28);
+            String size = "@" + w + "x" + h;
+
+            list.add(new Bench("sampleSkin" + size, new Op() {
+                @Override
+                public void run() {
+                    ColorSampler.sampleSkin(frame, w, face, ws.histogram(), sampled);
+                    sink += sampled[0];
+                }
+            }));
+            list.add(new Bench("segment" + size, new Op() {
+                @Override
+                public void run() {
+                    segmentation.segment(frame, w, face, ws.histogram());
+                    segmentation.labelFeatures(frame, w, face);
+                    sink += segmentation.eyeColor()[0];
+                }
+            }));
+            list.add(new Bench("analyzeFaceFeatures" + size, new Op() {
+                @Override
+                public void run() {
+                    sink += FeatureAnalyzer.analyzeFaceFeatures(skin, eye, hair).size();
+                }
+            }));
+            list.add(new Bench("removeBackground.fixed" + size, new Op() {
+                @Override
+                public void run() {
+                    BackgroundMatte.removeBackground(frame, w, face, skinHsv, ws, out, false, true);
+                    sink += out[out.length / 2];
+                }
+            }));
+            list.add(new Bench("removeBackground.float" + size, new Op() {
+                @Override
+                public void run() {
+                    BackgroundMatte.removeBackground(frame, w, face, skinHsv, ws, out, false, false);
+                    sink += out[out.length / 2];
+                }
+            }));
+            list.add(new Bench("removeBackground.segmented" + size, new Op() {
+                @Override
+                public void run() {
+                    BackgroundMatte.removeBackground(frame, w, face, skinHsv, MattingParams.DEFAULT, segmentation,
+                            ws, out, false, true);
+                    sink += out[out.length / 2];
+                }
+            }));
+            list.add(new Bench("removeBackground.parallel" + size, new Op() {
+                @Override
+                public void run() {
+                    BackgroundMatte.removeBackground(frame, w, face, skinHsv, ws, out, true, true);
+                    sink += out[out.length / 2];
+                }
+            }));
+            // Re-matting a kept crop with new tolerances; the distance planes are built on the first call
+            final MatteSource source = new MatteSource(frame, w, face, skinHsv);
+            final MattingParams tighter = new MattingParams(20f, 0.18f, 0.2f, 0.75f, 1.1f, 0);
+            list.add(new Bench("refine" + size, new Op() {
+                @Override
+                public void run() {
+                    BackgroundMatte.refine(source, tighter, ws, out, false, true);
+                    sink += out[out.length / 2];
+                }
+            }));
+            list.add(new Bench("refine.parallel" + size, new Op() {
+                @Override
+                public void run() {
+                    BackgroundMatte.refine(source, tighter, ws, out, true, true);
+                    sink += out[out.length / 2];
+                }
+            }));
+            // Per-pixel color conversion of the face crop: HSV as matting uses it, Lab planes
+            final float[] hsvPx = new float[3];
+            final int[] crop = new int[face.width() * face.height()];
+            for (int y = 0; y < face.height(); y++) {
+                System.arraycopy(frame, (face.top + y) * w + face.left, crop, y * face.width(), face.width());
+            }
+            final float[] labL = new float[crop.length], labA = new float[crop.length], labB = new float[crop.length];
+            list.add(new Bench("toHsv" + size, new Op() {
+                @Override
+                public void run() {
+                    float acc = 0f;
+                    for (int px : crop) {
+                        ColorMath.rgbToHsv((px >> 16) & 0xFF, (px >> 8) & 0xFF, px & 0xFF, hsvPx);
+                        acc += hsvPx[0];
+                    }
+                    sink += (long) acc;
+                }
+            }));
+            list.add(new Bench("toLab" + size, new Op() {
+                @Override
+                public void run() {
+                    CieLab.toLab(crop, 0, crop.length, labL, labA, labB);
+                    sink += (long) labL[crop.length / 2];
+                }
+            }));
+            list.add(new Bench("boxBlurAlpha" + size, new Op() {
+                @Override
+                public void run() {
+                    float[] a = BackgroundMatte.boxBlurAlpha(alpha, face.width(), face.height(), radius, 3, false);
+                    sink += (long) (a[a.length / 2] * 255);
+                }
+            }));
+        }
+
+        // Classification and palettes do not depend on the image size
+        final int[] rgb = {198, 152, 128};
+        // The engine classifies with the feature map of a face, numeric contrast and intensity included
+        final Map<String, Object> features = FeatureAnalyzer.analyzeFaceFeatures(rgb,
+                new int[]{50, 70, 90}, new int[]{60, 42, 30});
+        final float[] hsv = ColorMath.rgbToHsv(rgb[0], rgb[1], rgb[2]);
+
+        list.add(new Bench("classify", new Op() {
+            @Override
+            public void run() {
+                sink += SeasonClassifier.classify(rgb, features, false).size();
+            }
+        }));
+        list.add(new Bench("classify.withPalettes", new Op() {
+            @Override
+            public void run() {
+                sink += SeasonClassifier.classify(rgb, features, true).size();
+            }
+        }));
+        list.add(new Bench("buildAllPalettes", new Op() {
+            @Override
+            public void run() {
+                sink += PaletteBuilder.buildAllPalettes(rgb[0], rgb[1], rgb[2], hsv,
+                        "Soft Autumn", "Quente", (String) features.get("contrast"),
+                        (String) features.get("intensity")).size();
+            }
+        }));
+        // Palettes plus every hex string, as an event reads them
+        list.add(new Bench("buildAllPalettes.hex", new Op() {
+            @Override
+            public void run() {
+                for (Object p : PaletteBuilder.buildAllPalettes(rgb[0], rgb[1], rgb[2], hsv,
+                        "Soft Autumn", "Quente", "Médio", "Suave")) {
+                    for (Object item : (List<?>) p) sink += ((String) item).length();
+                }
+            }
+        }));
+        return list;
+    }
+
+    /** Child side: measures one benchmark and prints its score on stdout. */
+    private static void runForked(String name) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        threads.setThreadAllocatedMemoryEnabled(true);
+        for (Bench b : benchmarks()) {
+            if (b.name.equals(name)) {
+                Score s = measure(b.op, threads);
+                System.out.printf(Locale.US, "%f\t%f\t%f%n", s.nsPerOp, s.error, s.bytesPerOp);
+                return;
+            }
+        }
+        throw new IllegalArgumentException("No benchmark named " + name);
+    }
+
+    /** Parent side: runs one benchmark in a new JVM with the same class path. */
+    private static Score fork(String name, boolean quick) throws IOException {
+        List<String> cmd = new ArrayList<>();
+        cmd.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        cmd.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add(PipelineBenchmark.class.getName());
+        if (quick) cmd.add("--quick");
+        cmd.add("--fork");
+        cmd.add(name);
+
+        Process p = new ProcessBuilder(cmd).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()));
+        String line;
+        try {
+            line = in.readLine();
+            p.waitFor();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } finally {
+            in.close();
+        }
+        if (line == null || p.exitValue() != 0) throw new IOException("Benchmark " + name + " failed");
+        String[] f = line.split("\t");
+        return new Score(Double.parseDouble(f[0]), Double.parseDouble(f[1]), Double.parseDouble(f[2]));
+    }
+
+    private static Score measure(Op op, com.sun.management.ThreadMXBean threads) {
+        long thread = Thread.currentThread().getId();
+
+        // Calibrate a batch size that takes roughly 1 ms so timer cost is negligible
+        long batch = 1;
+        while (true) {
+            long t0 = System.nanoTime();
+            for (long i = 0; i < batch; i++) op.run();
+            if (System.nanoTime() - t0 >= 1000000L || batch >= 1 << 24) break;
+            batch *= 2;
+        }
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) iteration(op, batch, WARMUP_NANOS, threads, thread);
+
+        double[] ns = new double[measureIterations];
+        double bytes = 0;
+        for (int i = 0; i < measureIterations; i++) {
+            double[] r = iteration(op, batch, iterationNanos, threads, thread);
+            ns[i] = r[0];
+            bytes += r[1];
+        }
+
+        double mean = 0;
+        for (double v : ns) mean += v;
+        mean /= ns.length;
+        double var = 0;
+        for (double v : ns) var += (v - mean) * (v - mean);
+        double sd = ns.length > 1 ? Math.sqrt(var / (ns.length - 1)) : 0;
+
+        return new Score(mean, sd, bytes / measureIterations);
+    }
+
+    /** One timed iteration: { ns per op, bytes allocated per op }. */
+    private static double[] iteration(Op op, long batch, long nanos,
+                                      com.sun.management.ThreadMXBean threads, long thread) {
+        long ops = 0;
+        long alloc0 = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        long end = start + nanos;
+        long now;
+        do {
+            for (long i = 0; i < batch; i++) op.run();
+            ops += batch;
+            now = System.nanoTime();
+        } while (now < end);
+        long alloc = threads.getThreadAllocatedBytes(thread) - alloc0;
+        return new double[]{(now - start) / (double) ops, alloc / (double) ops};
+    }
+
+    /**
+     * Deterministic portrait-like frame: a skin-colored ellipse with noise on
+     * a random background, so every stage sees a realistic mix of skin and
+     * non-skin pixels.
+     */
+    static int[] syntheticPortrait(int w, int h, long seed) {
+        Random rnd = new Random(seed);
+        int[] px = new int[w * h];
+        for (int y = 0; y < h; y++) {
+            double dy = (y - h * 0.45) / (h * 0.32);
+            for (int x = 0; x < w; x++) {
+                double dx = (x - w * 0.5) / (w * 0.30);
+                int r, g, b;
+                if (dx * dx + dy * dy < 1 || rnd.nextInt(12) == 0) {
+                    r = 180 + rnd.nextInt(40);
+                    g = 130 + rnd.nextInt(35);
+                    b = 105 + rnd.nextInt(30);
+                } else {
+                    r = rnd.nextInt(256);
+                    g = rnd.nextInt(256);
+                    b = rnd.nextInt(256);
+                }
+                px[y * w + x] = 0xFF000000 | r << 16 | g << 8 | b;
+            }
+        }
+        return px;
+    }
+
+    private static void write(File file, Map<String, Score> scores) throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try {
+            out.println("# benchmark\tns/op\terror\tbytes/op");
+            out.println("# java " + System.getProperty("java.version") + ", "
+                    + System.getProperty("os.arch") + ", "
+                    + Runtime.getRuntime().availableProcessors() + " cpus");
+            for (Map.Entry<String, Score> e : scores.entrySet()) {
+                Score s = e.getValue();
+                out.printf(Locale.US, "%s\t%.1f\t%.1f\t%.0f%n", e.getKey(), s.nsPerOp, s.error, s.bytesPerOp);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static Map<String, Score> read(File file) throws IOException {
+        Map<String, Score> scores = new HashMap<>();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                Matcher m = CPUS.matcher(line);
+                if (line.startsWith("#") && m.find()) baselineCpus = Integer.parseInt(m.group(1));
+                if (line.startsWith("#") || line.trim().isEmpty()) continue;
+                String[] f = line.split("\t");
+                scores.put(f[0], new Score(Double.parseDouble(f[1]), Double.parseDouble(f[2]),
+                        Double.parseDouble(f[3])));
+            }
+        } finally {
+            in.close();
+        }
+        return scores;
+    }
+}
@@ -0,0 +1,90 @@
+package com.iagolirapassos.smartpersonalcolor;
+
+import com.iagolirapassos.smartpersonalcolor.core.PersonalColorEngine;
+import com.iagolirapassos.smartpersonalcolor.core.SeasonModel;
+
+/**
+ * Immutable snapshot of the component properties that shape one analysis.
+ *
+ * Taken when Analyze, AnalyzeBatch or AnalyzeFaces is called, so changing a property while
+ * work is queued never affects requests that were already accepted, and the
+ * pipeline only computes what the caller asked for.
+ */
+final class AnalysisOptions {
+
+    final int targetWidth;
+    final boolean parallelMatting;
+    final boolean fixedPointBlur;
+    final boolean generateFaceImage;
+    final boolean generatePalettes;
+    final boolean analyzeFeatures;
+    final String faceImageFormat;
+    final int faceImageQuality;
+    final boolean asyncFaceImageWrite;
+    final boolean resultCacheEnabled;
+    final boolean collectMetrics;
+    final boolean faceTracking;
+    final int redetectInterval;
+    final int maxFaces;
+    final int detectionWidth;
+    final int faceCropWidth;
+    final SeasonModel seasonModel;
+
+    AnalysisOptions(int targetWidth, boolean parallelMatting, boolean fixedPointBlur,
+                    boolean generateFaceImage, boolean generatePalettes, boolean analyzeFeatures,
+                    String faceImageFormat, int faceImageQuality, boolean asyncFaceImageWrite,
+                    boolean resultCacheEnabled, boolean collectMetrics, boolean faceTracking, int redetectInterval,
+                    int maxFaces, int detectionWidth, int faceCropWidth,
+                    SeasonModel seasonModel) {
+        this.targetWidth = targetWidth;
+        this.parallelMatting = parallelMatting;
+        this.fixedPointBlur = fixedPointBlur;
+        this.generateFaceImage = generateFaceImage;
+        this.generatePalettes = generatePalettes;
+        this.analyzeFeatures = analyzeFeatures;
+        this.faceImageFormat = faceImageFormat;
+        this.faceImageQuality = faceImageQuality;
+        this.asyncFaceImageWrite = asyncFaceImageWrite;
+        this.resultCacheEnabled = resultCacheEnabled;
+        this.collectMetrics = collectMetrics;
+        this.faceTracking = faceTracking;
+        this.redetectInterval = redetectInterval;
+        this.maxFaces = maxFaces;
+        this.detectionWidth = detectionWidth;
+        this.faceCropWidth = faceCropWidth;
+        this.seasonModel = seasonModel;
+    }
+
+    /** Engine configured with the pixel-processing options of this snapshot. */
+    PersonalColorEngine engine() {
+        return new PersonalColorEngine()
+                .analyzeFeatures(analyzeFeatures)
+                .generatePalettes(generatePalettes)
+                .parallelMatting(parallelMatting)
+                .fixedPointBlur(fixedPointBlur)
+                .seasonModel(seasonModel);
+    }
+
+    /**
+     * Whether results may come from and go to the result cache. Never with
+     * FaceTracking: each image has to move the tracker, and which face box
+     * the tracker hands over depends on the images before it, not only on
+     * the settings below.
+     */
+    boolean useResultCache() {
+        return resultCacheEnabled && !faceTracking;
+    }
+
+    /**
+     * Every option that changes the content of a result, used as the
+     * settings half of the result cache key.
+     */
+    String cacheSignature() {
+        return "v" + PersonalColorEngine.VERSION + "|" + targetWidth + "|" + detectionWidth + "|" + faceCropWidth
+                + "|" + fixedPointBlur + "|" + faceImageFormat + "|" + faceImageQuality
+                + "|" + (generateFaceImage ? 'i' : '-')
+                + (generatePalettes ? 'p' : '-')
+                + (analyzeFeatures ? 'f' : '-')
+                + "|" + seasonModel.signature();
+    }
+}
@@ -0,0 +1,52 @@
+package com.iagolirapassos.smartpersonalcolor;
+
+import android.graphics.Bitmap;
+import android.media.FaceDetector;
+import android.media.FaceDetector.Face;
+
+import com.iagolirapassos.smartpersonalcolor.core.Workspace;
+
+/**
+ * Engine workspace plus the RGB_565 bitmap and detector FaceDetector needs,
+ * so detection on a frame of the same size as the previous one allocates
+ * nothing either. A workspace is used by one thread at a time.
+ */
+final class AnalysisWorkspace extends Workspace {
+
+    static final int MAX_FACES = 5;
+
+    final Face[] faces = new Face[MAX_FACES];
+
+    private Bitmap detectBitmap;
+    private FaceDetector detector;
+    private int detectorMaxFaces;
+
+    /**
+     * Runs FaceDetector over the frame, looking for at most maxFaces faces
+     * (1 .. MAX_FACES); the search stops early when fewer are wanted. The
+     * RGB_565 bitmap and the detector are kept while the frame size and
+     * maxFaces do not change.
+     */
+    int detectFaces(int[] frame, int w, int h, int maxFaces) {
+        maxFaces = Math.max(1, Math.min(MAX_FACES, maxFaces));
+        if (detectBitmap == null || detectBitmap.getWidth() != w || detectBitmap.getHeight() != h) {
+            if (detectBitmap != null) detectBitmap.recycle();
+            detectBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.RGB_565);
+            detector = null;
+        }
+        if (detector == null || detectorMaxFaces != maxFaces) {
+            detector = new FaceDetector(w, h, maxFaces);
+            detectorMaxFaces = maxFaces;
+        }
+        detectBitmap.setPixels(frame, 0, w, 0, 0, w, h);
+        return detector.findFaces(detectBitmap, faces);
+    }
+
+    @Override
+    public void release() {
+        if (detectBitmap != null) detectBitmap.recycle();
+        detectBitmap = null;
+        detector = null;
+        super.release();
+    }
+}
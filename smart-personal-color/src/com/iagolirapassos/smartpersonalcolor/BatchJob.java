@@ -0,0 +1,96 @@
+package com.iagolirapassos.smartpersonalcolor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared state of one AnalyzeBatch call.
+ *
+ * Workers pull the next image index from a counter, so a batch keeps at most
+ * one task per worker in the pool regardless of its size, and the worker that
+ * completes the last image builds the aggregated result.
+ */
+final class BatchJob {
+
+    final int batchId;
+    final String[] paths;
+    final List<Map<String, Object>> results;
+    final String[] errors;
+
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicLong lastProgress = new AtomicLong();
+
+    BatchJob(int batchId, String[] paths) {
+        this.batchId = batchId;
+        this.paths = paths;
+        this.results = new ArrayList<>(Collections.<Map<String, Object>>nCopies(paths.length, null));
+        this.errors = new String[paths.length];
+    }
+
+    int size() {
+        return paths.length;
+    }
+
+    /** Next image index to analyze, or -1 when all have been claimed. */
+    int claim() {
+        int i = next.getAndIncrement();
+        return i < paths.length ? i : -1;
+    }
+
+    /** Stores a result and returns how many are complete. */
+    int complete(int index, Map<String, Object> result) {
+        results.set(index, result);
+        return completed.incrementAndGet();
+    }
+
+    /** Records why an image could not be analyzed and returns how many are complete. */
+    int fail(int index, String error) {
+        errors[index] = error;
+        return completed.incrementAndGet();
+    }
+
+    /**
+     * Whether every image is complete. Once it is, the BatchResult is on
+     * its way and pending progress events are dropped.
+     */
+    boolean isComplete() {
+        return completed.get() == paths.length;
+    }
+
+    /** True at most once per interval, so progress events stay throttled. */
+    boolean shouldReportProgress(long nowMs, long intervalMs) {
+        long last = lastProgress.get();
+        return nowMs - last >= intervalMs && lastProgress.compareAndSet(last, nowMs);
+    }
+
+    /** Most frequent value of key among successful results; ties go to the value that got there first. */
+    String consensus(String key) {
+        Map<String, Integer> votes = new HashMap<>();
+        String best = "";
+        int bestVotes = 0;
+        for (Map<String, Object> r : results) {
+            if (r == null) continue;
+            String value = (String) r.get(key);
+            Integer v = votes.get(value);
+            int n = v == null ? 1 : v + 1;
+            votes.put(value, n);
+            if (n > bestVotes) {
+                best = value;
+                bestVotes = n;
+            }
+        }
+        return best;
+    }
+
+    int successCount() {
+        int n = 0;
+        for (Map<String, Object> r : results) if (r != null) n++;
+        return n;
+    }
+}
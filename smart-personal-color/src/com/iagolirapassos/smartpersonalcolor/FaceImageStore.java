@@ -0,0 +1,162 @@
+package com.iagolirapassos.smartpersonalcolor;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Directory of generated face images with a size quota.
+ *
+ * Every image gets a unique name, so analyses that finish in the same
+ * second no longer overwrite each other. After each save a cleanup pass
+ * runs on a background thread and deletes the least recently used images
+ * (by modification time, which {@link #touch} refreshes) until the
+ * directory is within both the file-count and byte quotas.
+ */
+final class FaceImageStore {
+
+    private final File dir;
+    private final AtomicInteger sequence = new AtomicInteger();
+    private final AtomicBoolean cleanupPending = new AtomicBoolean();
+    private final ThreadPoolExecutor io;
+
+    private volatile int maxFiles;
+    private volatile long maxBytes;
+
+    FaceImageStore(File dir, int maxFiles, long maxBytes) {
+        this.dir = dir;
+        this.maxFiles = maxFiles;
+        this.maxBytes = maxBytes;
+        this.io = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(64),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "SmartPersonalColor-io");
+                        t.setDaemon(true);
+                        t.setPriority(Thread.MIN_PRIORITY);
+                        return t;
+                    }
+                });
+        io.allowCoreThreadTimeOut(true);
+        scheduleCleanup();
+    }
+
+    /** New, not yet existing file for an image; the directory is created if needed. */
+    File newFile(String prefix, String extension) {
+        if (!dir.exists()) dir.mkdirs();
+        String ts = new SimpleDateFormat("yyyyMMdd_HHmmss_SSS", Locale.US).format(new Date());
+        File file;
+        do {
+            file = new File(dir, prefix + "_" + ts + "_" + sequence.incrementAndGet() + extension);
+        } while (file.exists());
+        return file;
+    }
+
+    /** Marks an image as recently used so cleanup keeps it longer. */
+    void touch(File file) {
+        file.setLastModified(System.currentTimeMillis());
+    }
+
+    void setQuota(int maxFiles, long maxBytes) {
+        this.maxFiles = maxFiles;
+        this.maxBytes = maxBytes;
+        scheduleCleanup();
+    }
+
+    /** Queues a cleanup pass unless one is already waiting. */
+    void scheduleCleanup() {
+        if (!cleanupPending.compareAndSet(false, true)) return;
+        try {
+            io.execute(new Runnable() {
+                @Override
+                public void run() {
+                    cleanupPending.set(false);
+                    trim();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            cleanupPending.set(false);
+        }
+    }
+
+    /**
+     * Runs an image write on the store's background thread. Returns false
+     * when the write queue is full and the caller should write inline.
+     */
+    boolean writeAsync(Runnable write) {
+        try {
+            io.execute(write);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /** Deletes every stored image and returns how many were removed. */
+    synchronized int purge() {
+        int removed = 0;
+        for (File f : listImages()) {
+            if (f.delete()) removed++;
+        }
+        return removed;
+    }
+
+    void shutdown() {
+        io.shutdown();
+    }
+
+    private synchronized void trim() {
+        File[] files = listImages();
+        long total = 0;
+        for (File f : files) total += f.length();
+
+        int count = files.length;
+        if (count <= maxFiles && total <= maxBytes) return;
+
+        final long[] modified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            modified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                long d = modified[a] - modified[b];
+                return d < 0 ? -1 : d > 0 ? 1 : 0;
+            }
+        });
+
+        // Oldest first; the most recent image always survives
+        for (int i = 0; i < order.length - 1; i++) {
+            if (count <= maxFiles && total <= maxBytes) break;
+            File f = files[order[i]];
+            long len = f.length();
+            if (f.delete()) {
+                total -= len;
+                count--;
+            }
+        }
+    }
+
+    private File[] listImages() {
+        File[] files = dir.listFiles();
+        if (files == null) return new File[0];
+        int n = 0;
+        for (File f : files) {
+            if (f.isFile()) files[n++] = f;
+        }
+        return Arrays.copyOf(files, n);
+    }
+}
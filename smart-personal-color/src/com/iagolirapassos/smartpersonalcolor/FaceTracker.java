@@ -0,0 +1,118 @@
+package com.iagolirapassos.smartpersonalcolor;
+
+import android.graphics.Bitmap;
+import android.graphics.PointF;
+import android.media.FaceDetector;
+import android.media.FaceDetector.Face;
+
+import com.iagolirapassos.smartpersonalcolor.core.Region;
+
+/**
+ * Follows one face across consecutive frames of the same size.
+ *
+ * After a full-frame detection the face midpoint and eye distance are
+ * kept. The next frames only search a window about twice the face box
+ * around that point, with a single-face detector on a much smaller
+ * bitmap. If the window search misses, the last face is reused for that
+ * frame and the next frame runs a full detection again, as does every
+ * redetectInterval-th frame.
+ */
+final class FaceTracker {
+
+    // Search window size in eye distances (the face box is 3.4 x 4.76)
+    private static final float WINDOW_W = 7f;
+    private static final float WINDOW_H = 9.5f;
+
+    private boolean tracking;
+    private int frameW, frameH;
+    private float midX, midY, eyes;
+    private int sinceDetect;
+
+    private int winW, winH;
+    private Bitmap winBitmap;
+    private FaceDetector winDetector;
+    private final Face[] winFaces = new Face[1];
+    private final PointF mid = new PointF();
+
+    /**
+     * Face box for this frame, or null when no face is found. Detection
+     * runs on ws when a full search is needed.
+     */
+    synchronized Region locate(AnalysisWorkspace ws, int[] frame, int w, int h, int redetectInterval) {
+        if (tracking && winBitmap != null && w == frameW && h == frameH && sinceDetect < redetectInterval) {
+            sinceDetect++;
+            if (!searchWindow(frame, w, h)) {
+                // Lost in the window: coast on the last face, full search next frame
+                sinceDetect = redetectInterval;
+            }
+            return Region.face(midX, midY, eyes, w, h);
+        }
+
+        if (ws.detectFaces(frame, w, h, 1) == 0) {
+            tracking = false;
+            return null;
+        }
+        ws.faces[0].getMidPoint(mid);
+        midX = mid.x;
+        midY = mid.y;
+        eyes = ws.faces[0].eyesDistance();
+        frameW = w;
+        frameH = h;
+        sinceDetect = 0;
+        tracking = true;
+        sizeWindow(w, h);
+        return Region.face(midX, midY, eyes, w, h);
+    }
+
+    synchronized void reset() {
+        tracking = false;
+        release();
+    }
+
+    synchronized void release() {
+        if (winBitmap != null) winBitmap.recycle();
+        winBitmap = null;
+        winDetector = null;
+        winW = winH = 0;
+    }
+
+    private boolean searchWindow(int[] frame, int w, int h) {
+        if (winBitmap == null) return false;
+
+        int left = Math.max(0, Math.min(w - winW, Math.round(midX - winW / 2f)));
+        int top = Math.max(0, Math.min(h - winH, Math.round(midY - winH * 0.45f)));
+        winBitmap.setPixels(frame, top * w + left, w, 0, 0, winW, winH);
+        if (winDetector.findFaces(winBitmap, winFaces) == 0) return false;
+
+        winFaces[0].getMidPoint(mid);
+        midX = left + mid.x;
+        midY = top + mid.y;
+        eyes = winFaces[0].eyesDistance();
+        return true;
+    }
+
+    /**
+     * Window dimensions for the current eye distance, rounded up to 16 px
+     * so small changes keep the same bitmap and detector.
+     */
+    private void sizeWindow(int w, int h) {
+        int ww = Math.min(w & ~1, roundUp16(eyes * WINDOW_W));
+        int wh = Math.min(h, roundUp16(eyes * WINDOW_H));
+        if (ww >= w - 1 && wh >= h) {
+            // The face fills the frame; window search would not be cheaper
+            release();
+            return;
+        }
+        if (ww != winW || wh != winH || winBitmap == null) {
+            release();
+            winW = ww;
+            winH = wh;
+            winBitmap = Bitmap.createBitmap(ww, wh, Bitmap.Config.RGB_565);
+            winDetector = new FaceDetector(ww, wh, 1);
+        }
+    }
+
+    private static int roundUp16(float v) {
+        return ((int) Math.ceil(v) + 15) & ~15;
+    }
+}
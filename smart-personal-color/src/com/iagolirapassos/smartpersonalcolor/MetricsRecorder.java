@@ -0,0 +1,78 @@
+package com.iagolirapassos.smartpersonalcolor;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Running latency percentiles per stage.
+ *
+ * Keeps the most recent samples of every stage in a ring buffer, so the
+ * percentiles follow the current workload and memory stays bounded no
+ * matter how many analyses run.
+ */
+final class MetricsRecorder {
+
+    static final String TOTAL = "total";
+
+    private final int window;
+    private final Map<String, long[]> rings = new LinkedHashMap<>();
+    private final Map<String, long[]> counts = new LinkedHashMap<>();
+
+    MetricsRecorder(int window) {
+        this.window = window;
+    }
+
+    synchronized void record(StageMetrics metrics) {
+        for (Map.Entry<String, Long> e : metrics.nanos.entrySet()) {
+            add(e.getKey(), e.getValue());
+        }
+        add(TOTAL, metrics.totalNanos());
+    }
+
+    /**
+     * Snapshot per stage: count (all-time) followed by p50, p90, p99 and
+     * max in nanoseconds over the current window.
+     */
+    synchronized Map<String, long[]> summary() {
+        Map<String, long[]> out = new LinkedHashMap<>();
+        for (Map.Entry<String, long[]> e : rings.entrySet()) {
+            long count = counts.get(e.getKey())[0];
+            int n = (int) Math.min(count, window);
+            long[] sorted = Arrays.copyOf(e.getValue(), n);
+            Arrays.sort(sorted);
+            out.put(e.getKey(), new long[]{
+                    count,
+                    percentile(sorted, 0.50),
+                    percentile(sorted, 0.90),
+                    percentile(sorted, 0.99),
+                    sorted[n - 1]
+            });
+        }
+        return out;
+    }
+
+    synchronized void reset() {
+        rings.clear();
+        counts.clear();
+    }
+
+    private void add(String stage, long value) {
+        long[] ring = rings.get(stage);
+        long[] count = counts.get(stage);
+        if (ring == null) {
+            ring = new long[window];
+            count = new long[1];
+            rings.put(stage, ring);
+            counts.put(stage, count);
+        }
+        ring[(int) (count[0] % window)] = value;
+        count[0]++;
+    }
+
+    /** Nearest-rank percentile of a sorted, non-empty array. */
+    private static long percentile(long[] sorted, double p) {
+        int rank = (int) Math.ceil(p * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+}
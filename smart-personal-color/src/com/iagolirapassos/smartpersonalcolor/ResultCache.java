@@ -0,0 +1,265 @@
+package com.iagolirapassos.smartpersonalcolor;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Two-tier LRU cache of analysis results.
+ *
+ * Keys combine the image path, its modification time and size with the
+ * settings that change the result, so an edited image or different settings
+ * miss. The memory tier is an access-ordered LinkedHashMap; the disk tier
+ * keeps one small JSON file per entry and is trimmed oldest-first by
+ * modification time, which every hit refreshes. Each tier is bounded by
+ * entry count and bytes.
+ *
+ * Cached values must be strings, numbers, booleans, lists or maps of those.
+ */
+final class ResultCache {
+
+    private static final String SUFFIX = ".json";
+
+    private static final class Entry {
+        final Map<String, Object> result;
+        final long bytes;
+
+        Entry(Map<String, Object> result, long bytes) {
+            this.result = result;
+            this.bytes = bytes;
+        }
+    }
+
+    private final File dir;
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes;
+    private int maxEntries;
+    private long maxBytes;
+
+    ResultCache(File dir, int maxEntries, long maxBytes) {
+        this.dir = dir;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /** Cache key for an image file, or null if the file cannot be read. */
+    static String key(File image, String settings) {
+        if (!image.isFile()) return null;
+        return image.getAbsolutePath() + '|' + image.lastModified() + '|' + image.length() + '|' + settings;
+    }
+
+    /** Cached result for key, or null. The returned map is a copy the caller may extend. */
+    synchronized Map<String, Object> get(String key) {
+        Entry e = memory.get(key);
+        if (e == null) {
+            Map<String, Object> stored = readDisk(key);
+            if (stored == null) return null;
+            e = new Entry(stored, estimateBytes(stored));
+            putMemory(key, e);
+        }
+        return new HashMap<>(e.result);
+    }
+
+    synchronized void put(String key, Map<String, Object> result) {
+        Map<String, Object> copy = new HashMap<>(result);
+        putMemory(key, new Entry(copy, estimateBytes(copy)));
+        writeDisk(key, copy);
+    }
+
+    synchronized void resize(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        trimMemory();
+        trimDisk();
+    }
+
+    synchronized void clear() {
+        memory.clear();
+        memoryBytes = 0;
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File f : files) {
+            if (f.getName().endsWith(SUFFIX)) f.delete();
+        }
+    }
+
+    // ── Memory tier ───────────────────────────────────────────────────────────
+
+    private void putMemory(String key, Entry e) {
+        Entry old = memory.put(key, e);
+        if (old != null) memoryBytes -= old.bytes;
+        memoryBytes += e.bytes;
+        trimMemory();
+    }
+
+    private void trimMemory() {
+        Iterator<Entry> it = memory.values().iterator();
+        while ((memory.size() > maxEntries || memoryBytes > maxBytes) && it.hasNext()) {
+            memoryBytes -= it.next().bytes;
+            it.remove();
+        }
+    }
+
+    private static long estimateBytes(Object value) {
+        if (value instanceof String) return 40 + 2L * ((String) value).length();
+        if (value instanceof List) {
+            long n = 40;
+            for (Object o : (List<?>) value) n += 8 + estimateBytes(o);
+            return n;
+        }
+        if (value instanceof Map) {
+            long n = 64;
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                n += 32 + estimateBytes(e.getKey()) + estimateBytes(e.getValue());
+            }
+            return n;
+        }
+        return 16;
+    }
+
+    // ── Disk tier ─────────────────────────────────────────────────────────────
+
+    private Map<String, Object> readDisk(String key) {
+        File file = new File(dir, fileName(key));
+        if (!file.isFile()) return null;
+        try {
+            JSONObject json = new JSONObject(readText(file));
+            // Different keys can share a file name; only an exact match is a hit
+            if (!key.equals(json.optString("key"))) return null;
+            file.setLastModified(System.currentTimeMillis());
+            @SuppressWarnings("unchecked")
+            Map<String, Object> result = (Map<String, Object>) fromJson(json.getJSONObject("result"));
+            return result;
+        } catch (IOException | JSONException e) {
+            file.delete();
+            return null;
+        }
+    }
+
+    private void writeDisk(String key, Map<String, Object> result) {
+        if (!dir.exists() && !dir.mkdirs()) return;
+        File file = new File(dir, fileName(key));
+        try {
+            JSONObject json = new JSONObject();
+            json.put("key", key);
+            json.put("result", toJson(result));
+            Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            try {
+                out.write(json.toString());
+            } finally {
+                out.close();
+            }
+        } catch (IOException | JSONException e) {
+            file.delete();
+            return;
+        }
+        trimDisk();
+    }
+
+    private void trimDisk() {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+
+        long total = 0;
+        int count = 0;
+        List<File> entries = new ArrayList<>();
+        for (File f : files) {
+            if (!f.getName().endsWith(SUFFIX)) continue;
+            entries.add(f);
+            total += f.length();
+            count++;
+        }
+        if (count <= maxEntries && total <= maxBytes) return;
+
+        File[] oldestFirst = entries.toArray(new File[0]);
+        Arrays.sort(oldestFirst, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long d = a.lastModified() - b.lastModified();
+                return d < 0 ? -1 : d > 0 ? 1 : 0;
+            }
+        });
+        for (File f : oldestFirst) {
+            if (count <= maxEntries && total <= maxBytes) break;
+            total -= f.length();
+            count--;
+            f.delete();
+        }
+    }
+
+    /** 64-bit FNV-1a of the key, in hex. */
+    private static String fileName(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return Long.toHexString(h) + SUFFIX;
+    }
+
+    private static String readText(File file) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            StringBuilder sb = new StringBuilder();
+            char[] buf = new char[2048];
+            int n;
+            while ((n = in.read(buf)) > 0) sb.append(buf, 0, n);
+            return sb.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Object toJson(Object value) throws JSONException {
+        if (value instanceof Map) {
+            JSONObject obj = new JSONObject();
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                obj.put(String.valueOf(e.getKey()), toJson(e.getValue()));
+            }
+            return obj;
+        }
+        if (value instanceof List) {
+            JSONArray arr = new JSONArray();
+            for (Object o : (List<?>) value) arr.put(toJson(o));
+            return arr;
+        }
+        return value == null ? JSONObject.NULL : value;
+    }
+
+    private static Object fromJson(Object value) throws JSONException {
+        if (value instanceof JSONObject) {
+            JSONObject obj = (JSONObject) value;
+            Map<String, Object> map = new HashMap<>();
+            Iterator<String> keys = obj.keys();
+            while (keys.hasNext()) {
+                String k = keys.next();
+                map.put(k, fromJson(obj.get(k)));
+            }
+            return map;
+        }
+        if (value instanceof JSONArray) {
+            JSONArray arr = (JSONArray) value;
+            List<Object> list = new ArrayList<>(arr.length());
+            for (int i = 0; i < arr.length(); i++) list.add(fromJson(arr.get(i)));
+            return list;
+        }
+        return value == JSONObject.NULL ? null : value;
+    }
+}
@@ -2,27 +2,55 @@ package com.iagolirapassos.smartpersonalcolor;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Color;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.PointF;
-import android.media.FaceDetector;
+import android.graphics.Rect;
 import android.media.FaceDetector.Face;
+import android.os.Build;
+import android.os.Process;
 
 import com.google.appinventor.components.annotations.*;
 import com.google.appinventor.components.common.ComponentCategory;
+import com.google.appinventor.components.common.PropertyTypeConstants;
 import com.google.appinventor.components.runtime.*;
+import com.google.appinventor.components.runtime.util.YailDictionary;
 import com.google.appinventor.components.runtime.util.YailList;
-
+import com.iagolirapassos.smartpersonalcolor.core.BackgroundMatte;
+import com.iagolirapassos.smartpersonalcolor.core.ColorMath;
+import com.iagolirapassos.smartpersonalcolor.core.FaceSegmentation;
+import com.iagolirapassos.smartpersonalcolor.core.FrameConverter;
+import com.iagolirapassos.smartpersonalcolor.core.MatteSource;
+import com.iagolirapassos.smartpersonalcolor.core.MattingParams;
+import com.iagolirapassos.smartpersonalcolor.core.PersonalColorEngine;
+import com.iagolirapassos.smartpersonalcolor.core.Region;
+import com.iagolirapassos.smartpersonalcolor.core.ResultSmoother;
+import com.iagolirapassos.smartpersonalcolor.core.SeasonModel;
+import com.iagolirapassos.smartpersonalcolor.core.StageProbe;
+
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.text.SimpleDateFormat;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
-import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * SmartPersonalColor v5.0 - ANÁLISE COMPLETA DE COLORAÇÃO PESSOAL
@@ -44,788 +72,1653 @@ import java.util.Random;
         category = ComponentCategory.EXTENSION,
         nonVisible = true,
         iconName = "https://img.icons8.com/color/48/skin.png")
-public class SmartPersonalColor extends AndroidNonvisibleComponent {
+public class SmartPersonalColor extends AndroidNonvisibleComponent implements OnDestroyListener {
 
     private final ComponentContainer container;
     private static final String FACE_IMAGES_DIR = "SmartPersonalColor/faces";
+    private static final String RESULTS_DIR = "SmartPersonalColor/results";
+
+    private static final int DEFAULT_TARGET_WIDTH = 600;
+    private static final int MIN_TARGET_WIDTH = 120;
+    private static final int DEFAULT_DETECTION_WIDTH = 240;
+    private static final int DEFAULT_FACE_CROP_WIDTH = 512;
+    private static final int MAX_IDLE_WORKSPACES = 4;
+    private static final int DEFAULT_QUEUE_CAPACITY = 16;
+    private static final int WORKER_KEEP_ALIVE_SECONDS = 30;
+    private static final long BATCH_PROGRESS_INTERVAL_MS = 250;
+    private static final int DEFAULT_CACHE_ENTRIES = 64;
+    private static final int DEFAULT_CACHE_BYTES = 1024 * 1024;
+    private static final int DEFAULT_FACE_IMAGE_FILES = 50;
+    private static final int DEFAULT_FACE_IMAGE_BYTES = 20 * 1024 * 1024;
+    private static final int IMAGE_WRITE_BUFFER = 64 * 1024;
+    private static final int METRICS_WINDOW = 256;
+    private static final int DEFAULT_SMOOTHING_WINDOW = 5;
+    private static final int DEFAULT_REDETECT_INTERVAL = 10;
+
+    /** Result values beyond the fixed AnalysisResult parameters, passed as its details dictionary. */
+    private static final String[] DETAIL_KEYS =
+            {"skinConfidence", "seasonConfidence", "topSeasons", "eyeColor", "hairColor"};
+
+    private static final String FORMAT_PNG = "PNG";
+    private static final String FORMAT_WEBP_LOSSLESS = "WEBP_LOSSLESS";
+    private static final String FORMAT_WEBP = "WEBP";
+    // Face images are encoded under this suffix and renamed when complete
+    private static final String PARTIAL_SUFFIX = ".part";
+
+    private final ArrayDeque<AnalysisWorkspace> workspaces = new ArrayDeque<>();
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+
+    // Live frames: one in flight at a time, converted into buffers kept across frames
+    private final AtomicBoolean frameBusy = new AtomicBoolean();
+    private final ResultSmoother frameSmoother = new ResultSmoother(DEFAULT_SMOOTHING_WINDOW);
+    private int frameSmoothingWindow = DEFAULT_SMOOTHING_WINDOW;
+    private final FaceTracker faceTracker = new FaceTracker();
+    private volatile boolean faceTracking = false;
+    private volatile int redetectInterval = DEFAULT_REDETECT_INTERVAL;
+    private volatile int maxFaces = AnalysisWorkspace.MAX_FACES;
+    private int[] frameBuffer = new int[0];
+    private byte[] frameBytes = new byte[0];
+
+    // Face crop of the last analysis that made a face image (null when it found no face or came from
+    // the result cache), re-matted by Refine; the newest Refine wins
+    private volatile MatteSource lastMatte;
+    private final AtomicInteger latestRefine = new AtomicInteger();
+
+    // "requestId|path" of face images handed to the io queue whose result has not been dispatched
+    // yet; FaceImageSaved for them comes from the queue, any other one fires right after its result
+    private final Set<String> queuedFaceImages =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private volatile int targetWidth = DEFAULT_TARGET_WIDTH;
+    private volatile int detectionWidth = DEFAULT_DETECTION_WIDTH;
+    private volatile int faceCropWidth = DEFAULT_FACE_CROP_WIDTH;
+    private volatile SeasonModel seasonModel = SeasonModel.defaults();
+    private volatile boolean parallelMatting = true;
+    private volatile boolean fixedPointBlur = true;
+    private volatile boolean resultCacheEnabled = true;
+    private volatile String faceImageFormat = FORMAT_PNG;
+    private volatile int faceImageQuality = 90;
+    private volatile boolean asyncFaceImageWrite = false;
+    private volatile boolean generateFaceImage = true;
+    private volatile boolean generatePalettes = true;
+    private volatile boolean analyzeFeatures = true;
+    private volatile boolean collectMetrics = false;
+    private int resultCacheEntries = DEFAULT_CACHE_ENTRIES;
+    private int resultCacheBytes = DEFAULT_CACHE_BYTES;
+    private int faceImageMaxFiles = DEFAULT_FACE_IMAGE_FILES;
+    private int faceImageMaxBytes = DEFAULT_FACE_IMAGE_BYTES;
+    private int concurrency = 0;
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+    private ResultCache resultCache;
+    private FaceImageStore faceImages;
+    private final MetricsRecorder metrics = new MetricsRecorder(METRICS_WINDOW);
+
+    // Created lazily; replaced when Concurrency or QueueCapacity change
+    private ThreadPoolExecutor executor;
 
     public SmartPersonalColor(ComponentContainer container) {
         super(container.$form());
         this.container = container;
+        container.$form().registerForOnDestroy(this);
+    }
+
+    // =========================================================================
+    //  PROPERTIES
+    // =========================================================================
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_INTEGER,
+            defaultValue = "600")
+    @SimpleProperty
+    public void TargetWidth(int width) {
+        // FaceDetector only accepts even widths
+        targetWidth = Math.max(MIN_TARGET_WIDTH, width) & ~1;
+    }
+
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+            description = "Working width in pixels the image is decoded to before analysis. "
+                    + "Larger values are slower and use more memory.")
+    public int TargetWidth() {
+        return targetWidth;
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_INTEGER,
+            defaultValue = "240")
+    @SimpleProperty
+    public void DetectionWidth(int width) {
+        detectionWidth = width <= 0 ? 0 : Math.max(MIN_TARGET_WIDTH, width) & ~1;
+    }
+
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+            description = "Width of the small copy of the image faces are searched in by Analyze and "
+                    + "AnalyzeBatch. The face is then analyzed on a sharper crop decoded straight from the "
+                    + "file; when no face is found at this width the search is repeated at TargetWidth. "
+                    + "0 (or a value not below TargetWidth) does everything at TargetWidth.")
+    public int DetectionWidth() {
+        return detectionWidth;
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_INTEGER,
+            defaultValue = "512")
+    @SimpleProperty
+    public void FaceCropWidth(int width) {
+        faceCropWidth = Math.max(MIN_TARGET_WIDTH, width);
+    }
+
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+            description = "Most pixels across the face crop that skin, eyes and hair are sampled on when "
+                    + "DetectionWidth is used. It is never upscaled beyond the original photo. The face image "
+                    + "is still matted at TargetWidth.")
+    public int FaceCropWidth() {
+        return faceCropWidth;
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_BOOLEAN, defaultValue = "True")
+    @SimpleProperty
+    public void ParallelMatting(boolean enabled) {
+        parallelMatting = enabled;
+    }
+
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+            description = "Splits background removal across CPU cores. The result is identical "
+                    + "to the single-threaded path.")
+    public boolean ParallelMatting() {
+        return parallelMatting;
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_BOOLEAN, defaultValue = "True")
+    @SimpleProperty
+    public void FixedPointBlur(boolean enabled) {
+        fixedPointBlur = enabled;
+    }
+
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+            description = "Smooths the background-removal mask on an 8-bit integer plane instead of "
+                    + "floats. Uses a quarter of the memory; edges may differ by one or two alpha levels.")
+    public boolean FixedPointBlur() {
+        return fixedPointBlur;
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_BOOLEAN, defaultValue = "True")
+    @SimpleProperty
+    public void ResultCacheEnabled(boolean enabled) {
+        resultCacheEnabled = enabled;
+    }
+
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+            description = "Reuses the previous result when the same, unmodified image is analyzed "
+                    + "again with the same settings, skipping decoding and the face image. Not used while "
+                    + "FaceTracking is on, since every image has to update the tracked face.")
+    public boolean ResultCacheEnabled() {
+        return resultCacheEnabled;
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_INTEGER,
+            defaultValue = "64")
+    @SimpleProperty
+    public synchronized void ResultCacheEntries(int entries) {
+        resultCacheEntries = Math.max(1, entries);
+        if (resultCache != null) resultCache.resize(resultCacheEntries, resultCacheBytes);
+    }
+
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+            description = "Maximum number of cached results, in memory and on disk.")
+    public synchronized int ResultCacheEntries() {
+        return resultCacheEntries;
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_INTEGER,
+            defaultValue = "1048576")
+    @SimpleProperty
+    public synchronized void ResultCacheBytes(int bytes) {
+        resultCacheBytes = Math.max(0, bytes);
+        if (resultCache != null) resultCache.resize(resultCacheEntries, resultCacheBytes);
+    }
+
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+            description = "Maximum size in bytes of the result cache, in memory and on disk. "
+                    + "Least recently used results are evicted first.")
+    public synchronized int ResultCacheBytes() {
+        return resultCacheBytes;
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_INTEGER,
+            defaultValue = "50")
+    @SimpleProperty
+    public synchronized void FaceImageMaxFiles(int files) {
+        faceImageMaxFiles = Math.max(1, files);
+        if (faceImages != null) faceImages.setQuota(faceImageMaxFiles, faceImageMaxBytes);
+    }
+
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+            description = "Maximum number of face images kept in the cache directory. "
+                    + "The least recently used images are deleted in the background.")
+    public synchronized int FaceImageMaxFiles() {
+        return faceImageMaxFiles;
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_INTEGER,
+            defaultValue = "20971520")
+    @SimpleProperty
+    public synchronized void FaceImageMaxBytes(int bytes) {
+        faceImageMaxBytes = Math.max(0, bytes);
+        if (faceImages != null) faceImages.setQuota(faceImageMaxFiles, faceImageMaxBytes);
+    }
+
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+            description = "Maximum total size in bytes of the stored face images.")
+    public synchronized int FaceImageMaxBytes() {
+        return faceImageMaxBytes;
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_STRING, defaultValue = FORMAT_PNG)
+    @SimpleProperty
+    public void FaceImageFormat(String format) {
+        String f = format == null ? "" : format.trim().toUpperCase(java.util.Locale.US);
+        faceImageFormat = f.equals(FORMAT_WEBP_LOSSLESS) || f.equals(FORMAT_WEBP) ? f : FORMAT_PNG;
+    }
+
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+            description = "Encoding of the face image: PNG, WEBP_LOSSLESS or WEBP (lossy, see "
+                    + "FaceImageQuality). WEBP_LOSSLESS falls back to PNG before Android 10.")
+    public String FaceImageFormat() {
+        return faceImageFormat;
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_INTEGER,
+            defaultValue = "90")
+    @SimpleProperty
+    public void FaceImageQuality(int quality) {
+        faceImageQuality = Math.max(0, Math.min(100, quality));
+    }
+
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+            description = "Quality from 0 to 100 used when FaceImageFormat is WEBP.")
+    public int FaceImageQuality() {
+        return faceImageQuality;
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_BOOLEAN, defaultValue = "False")
+    @SimpleProperty
+    public void AsyncFaceImageWrite(boolean enabled) {
+        asyncFaceImageWrite = enabled;
+    }
+
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+            description = "Fires AnalysisResult without waiting for the face image to be written. "
+                    + "The image is ready once FaceImageSaved fires for the same request id.")
+    public boolean AsyncFaceImageWrite() {
+        return asyncFaceImageWrite;
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_BOOLEAN, defaultValue = "True")
+    @SimpleProperty
+    public void GenerateFaceImage(boolean enabled) {
+        generateFaceImage = enabled;
+    }
+
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+            description = "Removes the background around the face and saves it as an image. "
+                    + "When off, faceImagePath is empty and the matting step is skipped.")
+    public boolean GenerateFaceImage() {
+        return generateFaceImage;
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_BOOLEAN, defaultValue = "True")
+    @SimpleProperty
+    public void GeneratePalettes(boolean enabled) {
+        generatePalettes = enabled;
+    }
+
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+            description = "Builds the 15 color palettes. When off, palettes is an empty list.")
+    public boolean GeneratePalettes() {
+        return generatePalettes;
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_BOOLEAN, defaultValue = "True")
+    @SimpleProperty
+    public void AnalyzeFeatures(boolean enabled) {
+        analyzeFeatures = enabled;
+    }
+
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+            description = "Samples eye and hair color to estimate contrast and intensity. When off, "
+                    + "both are estimated from the skin color alone, as for images without a face.")
+    public boolean AnalyzeFeatures() {
+        return analyzeFeatures;
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_BOOLEAN, defaultValue = "False")
+    @SimpleProperty
+    public void CollectMetrics(boolean enabled) {
+        collectMetrics = enabled;
+    }
+
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+            description = "Times every stage of each analysis. Fires Metrics before the result and "
+                    + "feeds the percentiles returned by MetricsSummary.")
+    public boolean CollectMetrics() {
+        return collectMetrics;
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_INTEGER,
+            defaultValue = "5")
+    @SimpleProperty
+    public synchronized void FrameSmoothingWindow(int frames) {
+        frameSmoothingWindow = Math.max(1, frames);
+        frameSmoother.resize(frameSmoothingWindow);
+    }
+
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+            description = "How many recent frames FrameResult is smoothed over. The skin color is "
+                    + "averaged; season, undertone, contrast and intensity are majority votes.")
+    public synchronized int FrameSmoothingWindow() {
+        return frameSmoothingWindow;
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_BOOLEAN, defaultValue = "False")
+    @SimpleProperty
+    public void FaceTracking(boolean enabled) {
+        faceTracking = enabled;
+        if (!enabled) faceTracker.reset();
+    }
+
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+            description = "For frames or burst photos of the same person: after a face is found, the next "
+                    + "images only search a small window around it and a full detection runs every "
+                    + "RedetectInterval images or when the face is lost.")
+    public boolean FaceTracking() {
+        return faceTracking;
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_INTEGER,
+            defaultValue = "10")
+    @SimpleProperty
+    public void RedetectInterval(int frames) {
+        redetectInterval = Math.max(1, frames);
+    }
+
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+            description = "With FaceTracking, how many images may reuse the tracked face before a "
+                    + "full-frame detection runs again.")
+    public int RedetectInterval() {
+        return redetectInterval;
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_INTEGER,
+            defaultValue = "5")
+    @SimpleProperty
+    public void MaxFaces(int faces) {
+        maxFaces = Math.max(1, Math.min(AnalysisWorkspace.MAX_FACES, faces));
+    }
+
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+            description = "Most faces AnalyzeFaces looks for in one image (1 to "
+                    + AnalysisWorkspace.MAX_FACES + ").")
+    public int MaxFaces() {
+        return maxFaces;
+    }
+
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+            description = "The season table in use, in the format SetClassifierTable takes. Start from "
+                    + "it to tune the centroids.")
+    public String ClassifierTable() {
+        return seasonModel.table();
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_INTEGER,
+            defaultValue = "0")
+    @SimpleProperty
+    public synchronized void Concurrency(int threads) {
+        concurrency = Math.max(0, threads);
+        retireExecutor();
+    }
+
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+            description = "Maximum number of images analyzed at the same time. "
+                    + "0 uses one worker per CPU core.")
+    public synchronized int Concurrency() {
+        return concurrency;
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_INTEGER,
+            defaultValue = "16")
+    @SimpleProperty
+    public synchronized void QueueCapacity(int capacity) {
+        queueCapacity = Math.max(1, capacity);
+        retireExecutor();
+    }
+
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+            description = "How many analyses may wait for a free worker. Requests beyond this "
+                    + "are rejected and reported through the Error event.")
+    public synchronized int QueueCapacity() {
+        return queueCapacity;
     }
 
     // =========================================================================
     //  PUBLIC API
     // =========================================================================
 
-    @SimpleFunction(description = "Analyzes the image. Fires AnalysisResult with complete personal color analysis.")
-    public void Analyze(final String imagePath) {
-        new Thread(new Runnable() {
+    @SimpleFunction(description = "Analyzes the image in the background and returns a request id. "
+            + "Fires AnalysisResult (or Error) with the same request id when done.")
+    public int Analyze(final String imagePath) {
+        final int requestId = nextRequestId.incrementAndGet();
+        final AnalysisOptions options = options();
+        submit(requestId, new Runnable() {
             @Override
             public void run() {
-                final Map<String, Object> result = analyzeSync(imagePath);
+                Map<String, Object> analyzed;
+                String failure = null;
+                try {
+                    analyzed = analyzeSync(requestId, imagePath, options);
+                } catch (Exception | OutOfMemoryError e) {
+                    e.printStackTrace();
+                    analyzed = null;
+                    failure = describe(e);
+                }
+                final Map<String, Object> result = analyzed;
+                final String error = failure;
                 container.$form().runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
                         if (result == null) {
-                            Error("Analysis failed. Make sure the image contains a visible face.");
+                            Error(requestId, "Analysis failed: " + error);
+                            forgetQueuedFaceImages(requestId);
                         } else {
-                            int r = ((Number) result.get("r")).intValue();
-                            int g = ((Number) result.get("g")).intValue();
-                            int b = ((Number) result.get("b")).intValue();
-                            String undertone = (String) result.get("undertone");
-                            String undertoneDetail = (String) result.get("undertoneDetail");
-                            String contrast = (String) result.get("contrast");
-                            String intensity = (String) result.get("intensity");
-                            String season = (String) result.get("season");
-                            String seasonFull = (String) result.get("seasonFull");
-                            String seasonCategory = (String) result.get("seasonCategory");
-                            YailList palettes = (YailList) result.get("palettes");
-                            String facePath = (String) result.get("faceImagePath");
-
-                            if (palettes == null) palettes = YailList.makeEmptyList();
-                            if (facePath == null) facePath = "";
-
-                            // Chamar o evento com todos os parâmetros
-                            AnalysisResult(r, g, b, undertone, undertoneDetail, contrast, intensity, 
-                                          season, seasonFull, seasonCategory, palettes, facePath);
+                            dispatchResult(requestId, result);
+                            if (options.generateFaceImage) confirmFaceImage(requestId, result, options);
                         }
                     }
                 });
             }
-        }).start();
+        });
+        return requestId;
     }
 
-    // =========================================================================
-    //  CORE ANALYSIS
-    // =========================================================================
+    @SimpleFunction(description = "Analyzes a list of images in parallel and returns a batch id. "
+            + "Fires BatchProgress at most a few times per second and a single BatchResult "
+            + "with every per-image result plus the consensus season and undertone.")
+    public int AnalyzeBatch(YailList imagePaths) {
+        final int batchId = nextRequestId.incrementAndGet();
+        final BatchJob job = new BatchJob(batchId, imagePaths.toStringArray());
+        final AnalysisOptions options = options();
+
+        if (job.size() == 0) {
+            postBatchResult(job, options);
+            return batchId;
+        }
 
-    private Map<String, Object> analyzeSync(String path) {
+        // One task per worker; each keeps claiming images until the batch is drained
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int i;
+                while ((i = job.claim()) >= 0) {
+                    int done;
+                    try {
+                        done = job.complete(i, analyzeSync(job.batchId, job.paths[i], options));
+                    } catch (Exception | OutOfMemoryError e) {
+                        e.printStackTrace();
+                        done = job.fail(i, describe(e));
+                    }
+                    if (done == job.size()) {
+                        postBatchResult(job, options);
+                    } else if (job.shouldReportProgress(System.currentTimeMillis(), BATCH_PROGRESS_INTERVAL_MS)) {
+                        postBatchProgress(job, done);
+                    }
+                }
+            }
+        };
+
+        int workers = Math.min(job.size(), poolSize());
+        int accepted = 0;
+        for (int i = 0; i < workers; i++) {
+            try {
+                executor().execute(worker);
+                accepted++;
+            } catch (RejectedExecutionException e) {
+                break;
+            }
+        }
+        if (accepted == 0) {
+            // Pool saturated: one last try, reported through Error when rejected
+            submit(batchId, worker);
+        }
+        return batchId;
+    }
+
+    @SimpleFunction(description = "Analyzes every face in the image (up to MaxFaces) and returns a request id. "
+            + "The image is decoded once and the faces are analyzed in parallel. Fires FacesAnalyzed "
+            + "with one result per face, most confident and largest first (or Error).")
+    public int AnalyzeFaces(final String imagePath) {
+        final int requestId = nextRequestId.incrementAndGet();
+        final AnalysisOptions options = options();
+        submit(requestId, new Runnable() {
+            @Override
+            public void run() {
+                List<Object> items;
+                List<Map<String, Object>> analyzed = null;
+                String failure = null;
+                try {
+                    items = new ArrayList<>();
+                    analyzed = analyzeFacesSync(requestId, imagePath, options);
+                    for (Map<String, Object> face : analyzed) {
+                        items.add(toFaceDictionary(imagePath, face));
+                    }
+                } catch (Exception | OutOfMemoryError e) {
+                    e.printStackTrace();
+                    items = null;
+                    failure = describe(e);
+                }
+                final YailList faces = items != null ? YailList.makeList(items) : null;
+                final List<Map<String, Object>> results = analyzed;
+                final String error = failure;
+                container.$form().runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (faces == null) {
+                            Error(requestId, "Analysis failed: " + error);
+                            forgetQueuedFaceImages(requestId);
+                        } else {
+                            FacesAnalyzed(requestId, faces, faces.size());
+                            if (options.generateFaceImage) {
+                                for (Map<String, Object> face : results) {
+                                    confirmFaceImage(requestId, face, options);
+                                }
+                            }
+                        }
+                    }
+                });
+            }
+        });
+        return requestId;
+    }
+
+    @SimpleFunction(description = "Analyzes one raw camera frame without touching the disk and returns a "
+            + "frame id, or 0 when the frame was dropped because the previous one is still being analyzed. "
+            + "frame is a byte array or ByteBuffer in NV21, ARGB or RGBA format, or an int array of ARGB "
+            + "pixels (format ARGB). rotation (0, 90, 180 or 270) turns the frame upright; it is scaled "
+            + "down towards TargetWidth. Fires FrameResult, smoothed over FrameSmoothingWindow frames.")
+    public int AnalyzeFrame(Object frame, int width, int height, String format, int rotation) {
+        if (!frameBusy.compareAndSet(false, true)) return 0;
+
+        final int frameId = nextRequestId.incrementAndGet();
+        final AnalysisOptions options = options();
+        final StageMetrics stages = options.collectMetrics ? new StageMetrics() : null;
+        final int w, h;
         try {
-            if (path.startsWith("file://")) path = path.replace("file://", "");
-
-            Bitmap original = BitmapFactory.decodeFile(path);
-            if (original == null) return null;
-
-            // Scale to a manageable width
-            int targetW = 600;
-            int targetH = (int) ((targetW / (float) original.getWidth()) * original.getHeight());
-            Bitmap resized = Bitmap.createScaledBitmap(original, targetW, targetH, true);
-            original.recycle();
-
-            // FaceDetector requires RGB_565
-            Bitmap rgb565 = resized.copy(Bitmap.Config.RGB_565, true);
-            FaceDetector detector = new FaceDetector(rgb565.getWidth(), rgb565.getHeight(), 5);
-            Face[] faces = new Face[5];
-            int found = detector.findFaces(rgb565, faces);
-            rgb565.recycle();
-
-            // Working copy in ARGB_8888 for alpha support
-            Bitmap argb = resized.copy(Bitmap.Config.ARGB_8888, true);
-            resized.recycle();
+            int rot = ((rotation % 360) + 360) % 360;
+            if (rot % 90 != 0) throw new IllegalArgumentException("rotation must be a multiple of 90");
+            if (width <= 0 || height <= 0) throw new IllegalArgumentException("Invalid frame size");
+
+            int step = FrameConverter.stepFor(width, height, rot, options.targetWidth);
+            w = FrameConverter.outputWidth(width, height, step, rot);
+            h = FrameConverter.outputHeight(width, height, step, rot);
+            if (frameBuffer.length < w * h) frameBuffer = new int[w * h];
+            convertFrame(frame, width, height, format, step, rot);
+            if (stages != null) stages.lap("convert");
+        } catch (IllegalArgumentException | ClassCastException e) {
+            frameBusy.set(false);
+            Error(frameId, "Invalid frame: " + describe(e));
+            return frameId;
+        }
 
-            int[] avgColor;
-            String facePath;
-            Map<String, Object> analysis = new HashMap<>();
-
-            if (found > 0) {
-                Face face = faces[0];
-                Bitmap faceRect = extractFaceRegion(face, argb);
-                avgColor = sampleSkinPixels(faceRect);
-                
-                // Análise avançada de características faciais
-                analysis = analyzeFaceFeatures(faceRect, face, avgColor);
-                
-                Bitmap faceNoBg = removeBackground(faceRect, rgbToHsv(avgColor[0], avgColor[1], avgColor[2]));
-                faceRect.recycle();
-                facePath = saveFaceImage(faceNoBg, "face");
-                faceNoBg.recycle();
-            } else {
-                Bitmap center = extractCenterRegion(argb);
-                avgColor = averageColor(center);
-                analysis = analyzeBasicFeatures(avgColor);
-                facePath = saveFaceImage(center, "center_region");
-                center.recycle();
+        boolean accepted = submit(frameId, new Runnable() {
+            @Override
+            public void run() {
+                AnalysisWorkspace ws = acquireWorkspace();
+                try {
+                    StageProbe probe = stages != null ? stages : StageProbe.NONE;
+                    probe.lap("queue");
+                    Map<String, Object> result =
+                            analyzePixels(frameId, frameBuffer, w, h, ws, options, probe, false);
+                    final Map<String, Object> smoothed = frameSmoother.add(result);
+                    if (stages != null) {
+                        metrics.record(stages);
+                        postMetrics(frameId, stages);
+                    }
+                    container.$form().runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            dispatchFrameResult(frameId, smoothed);
+                        }
+                    });
+                } catch (final Exception | OutOfMemoryError e) {
+                    e.printStackTrace();
+                    container.$form().runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Error(frameId, "Frame analysis failed: " + describe(e));
+                        }
+                    });
+                } finally {
+                    releaseWorkspace(ws);
+                    frameBusy.set(false);
+                }
             }
+        });
+        if (!accepted) frameBusy.set(false);
+        return frameId;
+    }
 
-            argb.recycle();
+    @SimpleFunction(description = "Forgets the frames FrameResult is smoothed over, e.g. when the person "
+            + "in front of the camera changes.")
+    public void ResetFrameSmoothing() {
+        frameSmoother.clear();
+    }
 
-            Map<String, Object> result = classify(avgColor, analysis);
-            result.put("faceImagePath", facePath != null ? facePath : "");
-            return result;
+    @SimpleFunction(description = "Removes every cached analysis result, in memory and on disk.")
+    public void ClearResultCache() {
+        resultCache().clear();
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
+    @SimpleFunction(description = "Deletes every stored face image and returns how many were removed. "
+            + "Paths returned by earlier analyses stop being valid.")
+    public int PurgeFaceImages() {
+        return faceImages().purge();
+    }
+
+    @SimpleFunction(description = "Replaces the season table used by later analyses. Each line is "
+            + "'season,full name,category,warmth,value,chroma,contrast,intensity' (warmth -1 cool to 1 warm, "
+            + "the rest 0 to 1), plus optional 'weights,w1,w2,w3,w4,w5', 'temperature,t' and "
+            + "'undertone,neutral hue,hue span,olive hue,min chroma,peach chroma' (CIELAB degrees and C*ab) "
+            + "lines; '#' starts a comment. An empty text restores the built-in table. Fires Error and keeps "
+            + "the current table when the text is invalid.")
+    public void SetClassifierTable(String table) {
+        if (table == null || table.trim().isEmpty()) {
+            seasonModel = SeasonModel.defaults();
+            return;
+        }
+        try {
+            seasonModel = SeasonModel.parse(table);
+        } catch (IllegalArgumentException e) {
+            Error(0, "Invalid classifier table: " + e.getMessage());
         }
     }
 
-    // =========================================================================
-    //  ANÁLISE AVANÇADA DE CARACTERÍSTICAS FACIAIS
-    // =========================================================================
+    @SimpleFunction(description = "Removes the background of the last analyzed face again with other "
+            + "settings and returns a request id. Reuses the kept face crop, so nothing is decoded or "
+            + "detected again. hueTol (degrees), satTol and valTol (0 to 1) set how far from the skin "
+            + "color a pixel may be and still count as skin; inner and outer bound the soft edge of the "
+            + "face ellipse (1 is the ellipse, defaults 0.7 and 1.15); blurRadius softens the edge, in "
+            + "pixels. 0 for a tolerance or the radius keeps the automatic value. Fires FaceImageRefined, "
+            + "or Error when there is no face to refine or a value is invalid. A call still waiting when "
+            + "a newer one arrives is dropped without an event.")
+    public int Refine(double hueTol, double satTol, double valTol, double inner, double outer, int blurRadius) {
+        final int requestId = nextRequestId.incrementAndGet();
+        final MatteSource source = lastMatte;
+        if (source == null) {
+            Error(requestId, "Nothing to refine: analyze an image with GenerateFaceImage on first.");
+            return requestId;
+        }
+        final MattingParams params;
+        try {
+            params = new MattingParams((float) hueTol, (float) satTol, (float) valTol,
+                    (float) inner, (float) outer, blurRadius);
+        } catch (IllegalArgumentException e) {
+            Error(requestId, "Invalid matting parameters: " + e.getMessage());
+            return requestId;
+        }
 
-    private Map<String, Object> analyzeFaceFeatures(Bitmap faceBitmap, Face face, int[] skinColor) {
-        Map<String, Object> features = new HashMap<>();
-        
-        int w = faceBitmap.getWidth();
-        int h = faceBitmap.getHeight();
-        
-        // Extrair regiões para análise de olhos e cabelo
-        // Região dos olhos (parte superior do rosto)
-        int eyeRegionY = (int) (h * 0.3);
-        int eyeRegionHeight = (int) (h * 0.25);
-        
-        // Região do cabelo (testa e acima)
-        int hairRegionY = (int) (h * 0.1);
-        int hairRegionHeight = (int) (h * 0.2);
-        
-        // Analisar cor dos olhos (região central superior)
-        int[] eyeColor = sampleRegionColor(faceBitmap, w/3, eyeRegionY, w/3, eyeRegionHeight);
-        
-        // Analisar cor do cabelo (região superior)
-        int[] hairColor = sampleRegionColor(faceBitmap, 0, hairRegionY, w, hairRegionHeight);
-        
-        // Calcular contraste entre pele, olhos e cabelo
-        float skinEyeContrast = calculateContrast(skinColor, eyeColor);
-        float skinHairContrast = calculateContrast(skinColor, hairColor);
-        float eyeHairContrast = calculateContrast(eyeColor, hairColor);
-        
-        float avgContrast = (skinEyeContrast + skinHairContrast + eyeHairContrast) / 3;
-        
-        // Determinar nível de contraste
-        String contrastLevel;
-        if (avgContrast > 70) {
-            contrastLevel = "Alto";
-        } else if (avgContrast > 40) {
-            contrastLevel = "Médio";
-        } else {
-            contrastLevel = "Baixo";
-        }
-        
-        // Analisar intensidade (brilho vs suavidade)
-        float[] skinHsv = rgbToHsv(skinColor[0], skinColor[1], skinColor[2]);
-        float[] eyeHsv = rgbToHsv(eyeColor[0], eyeColor[1], eyeColor[2]);
-        float[] hairHsv = rgbToHsv(hairColor[0], hairColor[1], hairColor[2]);
-        
-        float avgSaturation = (skinHsv[1] + eyeHsv[1] + hairHsv[1]) / 3;
-        float avgValue = (skinHsv[2] + eyeHsv[2] + hairHsv[2]) / 3;
-        
-        // Intensidade: Brilhante (alta saturação e valor) vs Suave (baixa saturação)
-        String intensity;
-        if (avgSaturation > 0.4 && avgValue > 0.6) {
-            intensity = "Brilhante";
-        } else {
-            intensity = "Suave";
-        }
-        
-        features.put("contrast", contrastLevel);
-        features.put("contrastValue", avgContrast);
-        features.put("intensity", intensity);
-        features.put("eyeColor", eyeColor);
-        features.put("hairColor", hairColor);
-        features.put("saturation", avgSaturation);
-        features.put("brightness", avgValue);
-        
-        return features;
-    }
-
-    private Map<String, Object> analyzeBasicFeatures(int[] skinColor) {
-        Map<String, Object> features = new HashMap<>();
-        
-        float[] hsv = rgbToHsv(skinColor[0], skinColor[1], skinColor[2]);
-        
-        features.put("contrast", "Médio");
-        features.put("intensity", hsv[1] > 0.4 ? "Brilhante" : "Suave");
-        features.put("saturation", hsv[1]);
-        features.put("brightness", hsv[2]);
-        
-        return features;
-    }
-
-    private int[] sampleRegionColor(Bitmap bitmap, int startX, int startY, int width, int height) {
-        int endX = Math.min(startX + width, bitmap.getWidth());
-        int endY = Math.min(startY + height, bitmap.getHeight());
-        
-        long sumR = 0, sumG = 0, sumB = 0;
-        int count = 0;
-        
-        for (int x = startX; x < endX; x += 3) {
-            for (int y = startY; y < endY; y += 3) {
-                int pixel = bitmap.getPixel(x, y);
-                sumR += Color.red(pixel);
-                sumG += Color.green(pixel);
-                sumB += Color.blue(pixel);
-                count++;
+        final AnalysisOptions options = options();
+        latestRefine.set(requestId);
+        submit(requestId, new Runnable() {
+            @Override
+            public void run() {
+                if (latestRefine.get() != requestId) return;
+                String refined;
+                String failure = null;
+                try {
+                    refined = refineSync(requestId, source, params, options);
+                } catch (Exception | OutOfMemoryError e) {
+                    e.printStackTrace();
+                    refined = null;
+                    failure = describe(e);
+                }
+                final String path = refined;
+                final String error = failure;
+                container.$form().runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (path == null) {
+                            Error(requestId, "Refine failed: " + error);
+                            forgetQueuedFaceImages(requestId);
+                        } else {
+                            FaceImageRefined(requestId, path);
+                            confirmFaceImage(requestId, path, options);
+                        }
+                    }
+                });
             }
-        }
-        
-        if (count == 0) return new int[]{128, 128, 128};
-        
-        return new int[]{
-            (int) (sumR / count),
-            (int) (sumG / count),
-            (int) (sumB / count)
-        };
+        });
+        return requestId;
     }
 
-    private float calculateContrast(int[] color1, int[] color2) {
-        // Calcular diferença de luminância (contraste)
-        float l1 = 0.2126f * color1[0] + 0.7152f * color1[1] + 0.0722f * color1[2];
-        float l2 = 0.2126f * color2[0] + 0.7152f * color2[1] + 0.0722f * color2[2];
-        
-        return Math.abs(l1 - l2);
+    @SimpleFunction(description = "Latency percentiles of recent analyses made with CollectMetrics on. "
+            + "Returns a dictionary keyed by stage (decode, scale, detect, crop, sample, features, matting, "
+            + "classify, save, cache, plus convert and queue for frames, faces for AnalyzeFaces, and total); each entry holds count, p50, p90, p99 and max in "
+            + "milliseconds over the last " + METRICS_WINDOW + " samples of that stage.")
+    public YailDictionary MetricsSummary() {
+        YailDictionary summary = new YailDictionary();
+        for (Map.Entry<String, long[]> e : metrics.summary().entrySet()) {
+            long[] v = e.getValue();
+            YailDictionary stage = new YailDictionary();
+            stage.put("count", v[0]);
+            stage.put("p50", v[1] / 1e6);
+            stage.put("p90", v[2] / 1e6);
+            stage.put("p99", v[3] / 1e6);
+            stage.put("max", v[4] / 1e6);
+            summary.put(e.getKey(), stage);
+        }
+        return summary;
     }
 
-    // =========================================================================
-    //  BACKGROUND REMOVAL (mantido igual)
-    // =========================================================================
+    @SimpleFunction(description = "Clears the samples behind MetricsSummary.")
+    public void ResetMetrics() {
+        metrics.reset();
+    }
 
-    private Bitmap removeBackground(Bitmap src, float[] skinRef) {
-        int W = src.getWidth();
-        int H = src.getHeight();
+    @Override
+    public void onDestroy() {
+        synchronized (this) {
+            if (executor != null) executor.shutdownNow();
+            executor = null;
+            if (faceImages != null) faceImages.shutdown();
+        }
+        faceTracker.release();
+        lastMatte = null;
+        synchronized (workspaces) {
+            for (AnalysisWorkspace ws : workspaces) ws.release();
+            workspaces.clear();
+        }
+    }
 
-        int[] pixels = new int[W * H];
-        src.getPixels(pixels, 0, W, 0, 0, W, H);
+    private void dispatchResult(int requestId, Map<String, Object> result) {
+        int r = ((Number) result.get("r")).intValue();
+        int g = ((Number) result.get("g")).intValue();
+        int b = ((Number) result.get("b")).intValue();
+        String undertone = (String) result.get("undertone");
+        String undertoneDetail = (String) result.get("undertoneDetail");
+        String contrast = (String) result.get("contrast");
+        String intensity = (String) result.get("intensity");
+        String season = (String) result.get("season");
+        String seasonFull = (String) result.get("seasonFull");
+        String seasonCategory = (String) result.get("seasonCategory");
+        YailList palettes = toYailPalettes(result.get("palettes"));
+        String facePath = (String) result.get("faceImagePath");
+
+        if (facePath == null) facePath = "";
+
+        YailDictionary details = new YailDictionary();
+        for (String key : DETAIL_KEYS) {
+            if (result.containsKey(key)) details.put(key, toYailValue(result.get(key)));
+        }
 
-        float cx = W / 2.0f;
-        float cy = H * 0.48f;
-        float rx = W * 0.46f;
-        float ry = H * 0.50f;
+        // Chamar o evento com todos os parâmetros
+        AnalysisResult(requestId, r, g, b, undertone, undertoneDetail, contrast, intensity,
+                      season, seasonFull, seasonCategory, palettes, facePath, details);
+    }
 
-        final float INNER = 0.70f;
-        final float OUTER = 1.15f;
+    private void dispatchFrameResult(int frameId, Map<String, Object> result) {
+        FrameResult(frameId,
+                ((Number) result.get("r")).intValue(),
+                ((Number) result.get("g")).intValue(),
+                ((Number) result.get("b")).intValue(),
+                (String) result.get("undertone"),
+                (String) result.get("undertoneDetail"),
+                (String) result.get("contrast"),
+                (String) result.get("intensity"),
+                (String) result.get("season"),
+                (String) result.get("seasonFull"),
+                (String) result.get("seasonCategory"),
+                toYailPalettes(result.get("palettes")),
+                ((Number) result.get("framesInWindow")).intValue());
+    }
 
-        float[] rawAlpha = new float[W * H];
+    private void postBatchProgress(final BatchJob job, final int completed) {
+        container.$form().runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                // Another worker may have finished the batch meanwhile; BatchResult is the last event
+                if (job.isComplete()) return;
+                BatchProgress(job.batchId, completed, job.size());
+            }
+        });
+    }
 
-        for (int idx = 0; idx < pixels.length; idx++) {
-            int x = idx % W;
-            int y = idx / W;
+    private void postBatchResult(final BatchJob job, final AnalysisOptions options) {
+        List<Object> items = new ArrayList<>(job.size());
+        for (int i = 0; i < job.size(); i++) {
+            items.add(toDictionary(job.paths[i], job.results.get(i), job.errors[i]));
+        }
+        final YailList results = YailList.makeList(items);
+        final String season = job.consensus("season");
+        final String undertone = job.consensus("undertone");
+        final int analyzed = job.successCount();
+        container.$form().runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                BatchResult(job.batchId, results, season, undertone, analyzed);
+                if (options.generateFaceImage) {
+                    for (Map<String, Object> result : job.results) {
+                        if (result != null) confirmFaceImage(job.batchId, result, options);
+                    }
+                    // Images that failed after their write was queued never reach confirmFaceImage
+                    forgetQueuedFaceImages(job.batchId);
+                }
+            }
+        });
+    }
 
-            float dx = (x - cx) / rx;
-            float dy = (y - cy) / ry;
-            float rNorm = (float) Math.sqrt(dx * dx + dy * dy);
+    private YailDictionary toDictionary(String path, Map<String, Object> result, String error) {
+        YailDictionary dict = new YailDictionary();
+        dict.put("imagePath", path);
+        dict.put("success", result != null);
+        if (result == null) {
+            dict.put("error", error != null ? error : "");
+            return dict;
+        }
 
-            if (rNorm <= INNER) {
-                rawAlpha[idx] = 1.0f;
-            } else if (rNorm >= OUTER) {
-                rawAlpha[idx] = 0.0f;
-            } else {
-                rawAlpha[idx] = -1.0f;
-            }
+        for (String key : new String[]{"r", "g", "b", "undertone", "undertoneDetail", "contrast",
+                "intensity", "season", "seasonFull", "seasonCategory", "faceImagePath"}) {
+            dict.put(key, result.get(key));
+        }
+        dict.put("palettes", toYailPalettes(result.get("palettes")));
+        for (String key : DETAIL_KEYS) {
+            if (result.containsKey(key)) dict.put(key, toYailValue(result.get(key)));
         }
+        return dict;
+    }
 
-        float refH = skinRef[0];
-        float refS = skinRef[1];
-        float refV = skinRef[2];
+    /**
+     * One AnalyzeFaces entry: the usual result keys plus rank, confidence and
+     * the face box as fractions of the image size.
+     */
+    private YailDictionary toFaceDictionary(String path, Map<String, Object> face) {
+        YailDictionary dict = toDictionary(path, face, null);
+        for (String key : new String[]{"rank", "confidence", "x", "y", "width", "height"}) {
+            dict.put(key, face.get(key));
+        }
+        return dict;
+    }
 
-        float hueTol = 28f + refS * 12f;
-        float satTol = 0.22f + refV * 0.10f;
-        float valTol = 0.25f + (1f - refV) * 0.10f;
+    private void postMetrics(final int requestId, StageMetrics stages) {
+        final YailDictionary timings = new YailDictionary();
+        final YailDictionary bytes = new YailDictionary();
+        for (Map.Entry<String, Long> e : stages.nanos.entrySet()) {
+            timings.put(e.getKey(), e.getValue() / 1e6);
+        }
+        timings.put(MetricsRecorder.TOTAL, stages.totalNanos() / 1e6);
+        for (Map.Entry<String, Long> e : stages.bytes.entrySet()) {
+            bytes.put(e.getKey(), e.getValue());
+        }
+        container.$form().runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                Metrics(requestId, timings, bytes);
+            }
+        });
+    }
 
-        for (int idx = 0; idx < pixels.length; idx++) {
-            if (rawAlpha[idx] != -1.0f) continue;
+    /** Exception class and message, for the Error event and batch results. */
+    private static String describe(Throwable e) {
+        String message = e.getMessage();
+        String name = e.getClass().getSimpleName();
+        return message != null && !message.isEmpty() ? name + ": " + message : name;
+    }
 
-            int px = pixels[idx];
-            int r = Color.red(px);
-            int g = Color.green(px);
-            int b = Color.blue(px);
+    /** Lists in a result (nested or not) as YailLists; anything else as is. */
+    private static Object toYailValue(Object value) {
+        if (!(value instanceof List)) return value;
+        List<Object> items = new ArrayList<>();
+        for (Object o : (List<?>) value) items.add(toYailValue(o));
+        return YailList.makeList(items);
+    }
 
-            float[] hsv = new float[3];
-            Color.RGBToHSV(r, g, b, hsv);
+    /** Palettes are kept as plain lists internally; each event gets its own YailList copy. */
+    private static YailList toYailPalettes(Object palettes) {
+        if (!(palettes instanceof List)) return YailList.makeEmptyList();
+        List<Object> items = new ArrayList<>();
+        for (Object p : (List<?>) palettes) {
+            items.add(YailList.makeList((List<?>) p));
+        }
+        return YailList.makeList(items);
+    }
 
-            float dH = Math.abs(hsv[0] - refH);
-            if (dH > 180f) dH = 360f - dH;
+    // =========================================================================
+    //  WORKER POOL
+    // =========================================================================
 
-            float dS = Math.abs(hsv[1] - refS);
-            float dV = Math.abs(hsv[2] - refV);
+    /**
+     * Queues a task on the shared worker pool. When the queue is full the
+     * request is rejected and reported through Error instead of piling up
+     * more decoding threads. Returns whether the task was accepted.
+     */
+    private boolean submit(final int requestId, Runnable task) {
+        try {
+            executor().execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            final String message = "Analysis queue is full (" + QueueCapacity()
+                    + " pending). Request " + requestId + " was rejected.";
+            container.$form().runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    Error(requestId, message);
+                }
+            });
+            return false;
+        }
+    }
 
-            float scoreH = (float) Math.exp(-(dH * dH) / (2f * hueTol * hueTol));
-            float scoreS = (float) Math.exp(-(dS * dS) / (2f * satTol * satTol));
-            float scoreV = (float) Math.exp(-(dV * dV) / (2f * valTol * valTol));
+    private synchronized int poolSize() {
+        return concurrency > 0 ? concurrency : Runtime.getRuntime().availableProcessors();
+    }
 
-            float skinScore = scoreH * scoreS * scoreV;
+    private synchronized ThreadPoolExecutor executor() {
+        if (executor == null) {
+            int threads = poolSize();
+            executor = new ThreadPoolExecutor(threads, threads,
+                    WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueCapacity),
+                    new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            Thread t = new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                    r.run();
+                                }
+                            }, "SmartPersonalColor-" + count.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
 
-            int x = idx % W;
-            int y = idx / W;
-            float dx = (x - cx) / rx;
-            float dy = (y - cy) / ry;
-            float rNorm = (float) Math.sqrt(dx * dx + dy * dy);
-            float t = (rNorm - INNER) / (OUTER - INNER);
-            float ellipticW = (float) (0.5f * (1f + Math.cos(Math.PI * t)));
+    /** Lets queued work finish on the old pool; the next request creates a new one. */
+    private synchronized void retireExecutor() {
+        if (executor != null) executor.shutdown();
+        executor = null;
+    }
 
-            rawAlpha[idx] = skinScore * ellipticW;
-        }
+    // =========================================================================
+    //  CORE ANALYSIS
+    // =========================================================================
 
-        int blurRadius = Math.max(2, Math.min(W, H) / 28);
-        float[] blurred = boxBlurAlpha(rawAlpha, W, H, blurRadius, 3);
+    private AnalysisOptions options() {
+        return new AnalysisOptions(targetWidth, parallelMatting, fixedPointBlur,
+                generateFaceImage, generatePalettes, analyzeFeatures,
+                faceImageFormat, faceImageQuality, asyncFaceImageWrite, resultCacheEnabled, collectMetrics,
+                faceTracking, redetectInterval, maxFaces, detectionWidth, faceCropWidth,
+                seasonModel);
+    }
 
-        for (int idx = 0; idx < pixels.length; idx++) {
-            float a = blurred[idx];
-            a = sCurve(a);
-            int alpha = Math.round(a * 255f);
-            if (alpha < 10) alpha = 0;
-            if (alpha > 245) alpha = 255;
+    /**
+     * Result for one image, from the cache when possible. Failures are
+     * thrown so callers can report the reason.
+     */
+    private Map<String, Object> analyzeSync(int requestId, String path, AnalysisOptions options)
+            throws IOException {
+        if (path.startsWith("file://")) path = path.replace("file://", "");
+
+        StageMetrics stages = options.collectMetrics ? new StageMetrics() : null;
+        StageProbe probe = stages != null ? stages : StageProbe.NONE;
+
+        String cacheKey = options.useResultCache()
+                ? ResultCache.key(new File(path), options.cacheSignature())
+                : null;
+        Map<String, Object> result = null;
+        if (cacheKey != null) {
+            Map<String, Object> cached = resultCache().get(cacheKey);
+            if (cached != null && faceImageExists(cached)) {
+                result = cached;
+                // The kept crop belongs to some earlier image now
+                if (options.generateFaceImage) lastMatte = null;
+            }
+            probe.lap("cache");
+        }
 
-            int origPx = pixels[idx];
-            pixels[idx] = Color.argb(
-                    alpha,
-                    Color.red(origPx),
-                    Color.green(origPx),
-                    Color.blue(origPx));
+        if (result == null) {
+            result = analyzeImage(requestId, path, options, probe);
+            if (cacheKey != null) resultCache().put(cacheKey, result);
         }
 
-        Bitmap result = Bitmap.createBitmap(W, H, Bitmap.Config.ARGB_8888);
-        result.setPixels(pixels, 0, W, 0, 0, W, H);
+        if (stages != null) {
+            metrics.record(stages);
+            postMetrics(requestId, stages);
+        }
         return result;
     }
 
-    private float[] boxBlurAlpha(float[] src, int W, int H, int radius, int iterations) {
-        float[] a = src.clone();
-        float[] b = new float[W * H];
+    private synchronized ResultCache resultCache() {
+        if (resultCache == null) {
+            resultCache = new ResultCache(new File(container.$form().getCacheDir(), RESULTS_DIR),
+                    resultCacheEntries, resultCacheBytes);
+        }
+        return resultCache;
+    }
 
-        for (int iter = 0; iter < iterations; iter++) {
-            for (int y = 0; y < H; y++) {
-                float sum = 0;
-                int count = 0;
-                for (int x = 0; x <= radius && x < W; x++) {
-                    sum += a[y * W + x];
-                    count++;
-                }
-                for (int x = 0; x < W; x++) {
-                    b[y * W + x] = sum / count;
-                    int add = x + radius + 1;
-                    int rem = x - radius;
-                    if (add < W) { sum += a[y * W + add]; count++; }
-                    if (rem >= 0) { sum -= a[y * W + rem]; count--; }
-                }
-            }
-            for (int x = 0; x < W; x++) {
-                float sum = 0;
-                int count = 0;
-                for (int y = 0; y <= radius && y < H; y++) {
-                    sum += b[y * W + x];
-                    count++;
-                }
-                for (int y = 0; y < H; y++) {
-                    a[y * W + x] = sum / count;
-                    int add = y + radius + 1;
-                    int rem = y - radius;
-                    if (add < H) { sum += b[add * W + x]; count++; }
-                    if (rem >= 0) { sum -= b[rem * W + x]; count--; }
-                }
-            }
+    private synchronized FaceImageStore faceImages() {
+        if (faceImages == null) {
+            faceImages = new FaceImageStore(new File(container.$form().getCacheDir(), FACE_IMAGES_DIR),
+                    faceImageMaxFiles, faceImageMaxBytes);
         }
-        return a;
+        return faceImages;
     }
 
-    private float sCurve(float t) {
-        t = Math.max(0f, Math.min(1f, t));
-        return t * t * (3f - 2f * t);
+    /**
+     * A cached result is only usable while the face image it points to still
+     * exists; a hit also counts as a use of that image for eviction.
+     */
+    private boolean faceImageExists(Map<String, Object> result) {
+        String facePath = (String) result.get("faceImagePath");
+        if (facePath == null || facePath.isEmpty()) return true;
+        File file = new File(facePath.replace("file://", ""));
+        if (!file.isFile()) return false;
+        faceImages().touch(file);
+        return true;
     }
 
-    // =========================================================================
-    //  FACE / REGION EXTRACTION
-    // =========================================================================
+    private Map<String, Object> analyzeImage(int requestId, String path, AnalysisOptions options,
+                                             StageProbe probe) throws IOException {
+        // Scale to a manageable width
+        Bitmap resized = decodeScaled(path, options.targetWidth, probe);
+        if (resized == null) throw new IOException("Cannot decode image " + path);
 
-    private Bitmap extractFaceRegion(Face face, Bitmap src) {
-        PointF mid = new PointF();
-        face.getMidPoint(mid);
-        float ed = face.eyesDistance();
+        int W = resized.getWidth();
+        int H = resized.getHeight();
 
-        float fw = ed * 3.4f;
-        float fh = fw * 1.4f;
+        AnalysisWorkspace ws = acquireWorkspace();
+        try {
+            // Tracking keeps its face box in TargetWidth coordinates, so it stays on the single-width path
+            if (!options.faceTracking && options.detectionWidth > 0 && options.detectionWidth < W) {
+                Region box = detectOnProxy(resized, ws, options.detectionWidth, probe);
+                if (box != null) return analyzeFaceCrop(requestId, path, resized, box, ws, options, probe);
+            }
 
-        int l = Math.max(0, (int) (mid.x - fw / 2));
-        int t = Math.max(0, (int) (mid.y - fh * 0.42f));
-        int r = Math.min(src.getWidth(), (int) (mid.x + fw / 2));
-        int b = Math.min(src.getHeight(), (int) (mid.y + fh * 0.58f));
+            // Every stage below reads from this single ARGB buffer
+            int[] pixels = ws.frame(W * H);
+            resized.getPixels(pixels, 0, W, 0, 0, W, H);
+            resized.recycle();
+            probe.lap("scale");
 
-        if ((r - l) < 60 || (b - t) < 60) {
-            l = Math.max(0, (int) (mid.x - 90));
-            t = Math.max(0, (int) (mid.y - 90));
-            r = Math.min(src.getWidth(), (int) (mid.x + 90));
-            b = Math.min(src.getHeight(), (int) (mid.y + 90));
+            return analyzePixels(requestId, pixels, W, H, ws, options, probe, options.generateFaceImage);
+        } finally {
+            releaseWorkspace(ws);
         }
-
-        return Bitmap.createBitmap(src, l, t, r - l, b - t);
     }
 
-    private Bitmap extractCenterRegion(Bitmap bmp) {
-        int cx = bmp.getWidth() / 2;
-        int cy = bmp.getHeight() / 3;
-        int sz = Math.min(bmp.getWidth(), bmp.getHeight()) / 2;
+    /**
+     * Searches a DetectionWidth copy of frame for one face and returns its
+     * box in frame coordinates, or null when none is found at that width.
+     */
+    private static Region detectOnProxy(Bitmap frame, AnalysisWorkspace ws, int detectionWidth,
+                                        StageProbe probe) {
+        int W = frame.getWidth();
+        int H = frame.getHeight();
+        int pw = detectionWidth;
+        int ph = Math.max(1, Math.round(H * pw / (float) W));
+        Bitmap proxy = Bitmap.createScaledBitmap(frame, pw, ph, true);
+        int[] pixels = ws.frame(pw * ph);
+        proxy.getPixels(pixels, 0, pw, 0, 0, pw, ph);
+        if (proxy != frame) proxy.recycle();
+        probe.lap("scale");
+
+        int found = ws.detectFaces(pixels, pw, ph, 1);
+        probe.lap("detect");
+        if (found == 0) return null;
 
-        int l = Math.max(0, cx - sz / 2);
-        int t = Math.max(0, cy - sz / 2);
-        int r = Math.min(bmp.getWidth(), cx + sz / 2);
-        int b = Math.min(bmp.getHeight(), cy + sz / 2);
-        return Bitmap.createBitmap(bmp, l, t, r - l, b - t);
+        PointF mid = new PointF();
+        ws.faces[0].getMidPoint(mid);
+        float sx = W / (float) pw;
+        float sy = H / (float) ph;
+        return Region.face(mid.x * sx, mid.y * sy, ws.faces[0].eyesDistance() * sx, W, H);
     }
 
-    // =========================================================================
-    //  COLOR SAMPLING
-    // =========================================================================
+    /**
+     * Analyzes the face box found by detectOnProxy. Skin, eyes and hair are
+     * sampled on a crop decoded from the file with BitmapRegionDecoder, at
+     * up to FaceCropWidth; the face image is matted on the box of the
+     * TargetWidth frame, so it has the size the single-width path gives.
+     * Formats without a region decoder are sampled on the frame as well.
+     * Takes ownership of frame.
+     */
+    private Map<String, Object> analyzeFaceCrop(int requestId, String path, Bitmap frame, Region box,
+                                                AnalysisWorkspace ws, AnalysisOptions options,
+                                                StageProbe probe) {
+        int W = frame.getWidth();
+        int H = frame.getHeight();
+        PersonalColorEngine engine = options.engine().probe(probe);
+
+        Bitmap crop = decodeFaceCrop(path, box, W, H, options);
+        Map<String, Object> result = null;
+        if (crop != null) {
+            int cw = crop.getWidth();
+            int ch = crop.getHeight();
+            int[] cropPixels = ws.frame(cw * ch);
+            crop.getPixels(cropPixels, 0, cw, 0, 0, cw, ch);
+            crop.recycle();
+            probe.lap("crop");
+            result = engine.analyzeFace(cropPixels, cw, new Region(0, 0, cw, ch), ws, null);
+        }
 
-    private int[] sampleSkinPixels(Bitmap bmp) {
-        int W = bmp.getWidth(), H = bmp.getHeight();
-        int sl = W / 4, st = H / 4, sr = W * 3 / 4, sb = H * 3 / 4;
+        int[] pixels = ws.frame(W * H);
+        frame.getPixels(pixels, 0, W, 0, 0, W, H);
+        frame.recycle();
+        probe.lap("scale");
+
+        if (result == null) {
+            result = analyzeCrop(requestId, pixels, W, box, ws, engine, options, probe, options.generateFaceImage);
+        } else if (options.generateFaceImage) {
+            // The box is segmented again at this size, since the matte reads its skin cells
+            FaceSegmentation segmentation = ws.segmentation();
+            segmentation.segment(pixels, W, box, ws.histogram());
+            int[] skin = segmentation.skinColor();
+            int bw = box.width(), bh = box.height();
+            int[] out = ws.output(bw * bh);
+            BackgroundMatte.removeBackground(pixels, W, box, ColorMath.rgbToHsv(skin[0], skin[1], skin[2]),
+                    MattingParams.DEFAULT, segmentation, ws, out, options.parallelMatting, options.fixedPointBlur);
+            probe.lap("matting");
+            Bitmap faceNoBg = Bitmap.createBitmap(out, 0, bw, bw, bh, Bitmap.Config.ARGB_8888);
+            String facePath = saveFaceImage(requestId, faceNoBg, "face", options);
+            probe.lap("save");
+            result.put("faceImagePath", facePath != null ? facePath : "");
+        } else {
+            result.put("faceImagePath", "");
+        }
+        if (options.generateFaceImage) keepForRefine(pixels, W, box, ws.segmentation());
+        return result;
+    }
 
-        if (sr <= sl || sb <= st) return averageColor(bmp);
+    /** Face detection, engine and optional face image for a frame already in ARGB form. */
+    private Map<String, Object> analyzePixels(int requestId, int[] pixels, int W, int H, AnalysisWorkspace ws,
+                                              AnalysisOptions options, StageProbe probe, boolean saveImage) {
+        PersonalColorEngine engine = options.engine().probe(probe);
 
-        List<int[]> skin = new ArrayList<>();
-        Random rng = new Random(42);
+        // Only the first face is used, so the detector can stop at one
+        Region crop;
+        if (options.faceTracking) {
+            crop = faceTracker.locate(ws, pixels, W, H, options.redetectInterval);
+        } else {
+            crop = ws.detectFaces(pixels, W, H, 1) > 0 ? faceRegion(ws.faces[0], W, H) : null;
+        }
+        probe.lap("detect");
 
-        for (int i = 0; i < 500; i++) {
-            int x = sl + rng.nextInt(sr - sl);
-            int y = st + rng.nextInt(sb - st);
-            int px = bmp.getPixel(x, y);
+        if (crop != null) {
+            Map<String, Object> result =
+                    analyzeCrop(requestId, pixels, W, crop, ws, engine, options, probe, saveImage);
+            if (saveImage) keepForRefine(pixels, W, crop, ws.segmentation());
+            return result;
+        }
 
-            float[] hsv = new float[3];
-            Color.RGBToHSV(Color.red(px), Color.green(px), Color.blue(px), hsv);
+        Region center = Region.center(W, H);
+        Map<String, Object> result = engine.analyzeRegion(pixels, W, center);
+        String facePath = "";
+        if (saveImage) {
+            Bitmap centerBmp = Bitmap.createBitmap(pixels, center.top * W + center.left, W,
+                    center.width(), center.height(), Bitmap.Config.ARGB_8888);
+            facePath = saveFaceImage(requestId, centerBmp, "center_region", options);
+            probe.lap("save");
+            // No face to re-matte; Refine must not fall back to an earlier image
+            lastMatte = null;
+        }
+        result.put("faceImagePath", facePath != null ? facePath : "");
+        return result;
+    }
 
-            if (isSkinTone(hsv)) {
-                skin.add(new int[]{Color.red(px), Color.green(px), Color.blue(px)});
-            }
+    /** Engine run and optional matted face image for one face box. */
+    private Map<String, Object> analyzeCrop(int requestId, int[] pixels, int W, Region crop, AnalysisWorkspace ws,
+                                            PersonalColorEngine engine, AnalysisOptions options,
+                                            StageProbe probe, boolean saveImage) {
+        int cw = crop.width(), ch = crop.height();
+        int[] out = saveImage ? ws.output(cw * ch) : null;
+        Map<String, Object> result = engine.analyzeFace(pixels, W, crop, ws, out);
+
+        String facePath = "";
+        if (out != null) {
+            Bitmap faceNoBg = Bitmap.createBitmap(out, 0, cw, cw, ch, Bitmap.Config.ARGB_8888);
+            facePath = saveFaceImage(requestId, faceNoBg, "face", options);
+            probe.lap("save");
         }
+        result.put("faceImagePath", facePath != null ? facePath : "");
+        return result;
+    }
 
-        if (skin.size() < 50) return averageColor(bmp);
+    /** Keeps a copy of the face box and its segmentation as the crop Refine works on. */
+    private void keepForRefine(int[] pixels, int W, Region crop, FaceSegmentation segmentation) {
+        lastMatte = new MatteSource(pixels, W, crop, segmentation);
+    }
+
+    /** Re-mattes a kept crop and saves it; returns the face image path ("" if it was not written). */
+    private String refineSync(int requestId, MatteSource source, MattingParams params, AnalysisOptions options) {
+        StageMetrics stages = options.collectMetrics ? new StageMetrics() : null;
+        StageProbe probe = stages != null ? stages : StageProbe.NONE;
+
+        int w = source.width(), h = source.height();
+        String facePath;
+        AnalysisWorkspace ws = acquireWorkspace();
+        try {
+            int[] out = ws.output(w * h);
+            BackgroundMatte.refine(source, params, ws, out, options.parallelMatting, options.fixedPointBlur);
+            probe.lap("matting");
+            Bitmap faceNoBg = Bitmap.createBitmap(out, 0, w, w, h, Bitmap.Config.ARGB_8888);
+            facePath = saveFaceImage(requestId, faceNoBg, "face", options);
+            probe.lap("save");
+        } finally {
+            releaseWorkspace(ws);
+        }
 
-        int sumR = 0, sumG = 0, sumB = 0;
-        for (int[] p : skin) { sumR += p[0]; sumG += p[1]; sumB += p[2]; }
-        int n = skin.size();
-        return new int[]{sumR / n, sumG / n, sumB / n};
+        if (stages != null) {
+            metrics.record(stages);
+            postMetrics(requestId, stages);
+        }
+        return facePath != null ? facePath : "";
     }
 
-    private int[] averageColor(Bitmap bmp) {
-        long sumR = 0, sumG = 0, sumB = 0;
-        int cnt = 0;
-        for (int x = 0; x < bmp.getWidth(); x += 5) {
-            for (int y = 0; y < bmp.getHeight(); y += 5) {
-                int px = bmp.getPixel(x, y);
-                sumR += Color.red(px);
-                sumG += Color.green(px);
-                sumB += Color.blue(px);
-                cnt++;
+    /**
+     * Every face in the image, ranked by detector confidence times face
+     * area. Each face gets its own workspace and engine run; they all read
+     * the one decoded frame. The calling worker and up to Concurrency - 1
+     * more from the pool take faces one at a time, so a busy pool only
+     * means fewer helpers. No faces gives an empty list. Results are not
+     * cached since the cache holds one result per image.
+     */
+    private List<Map<String, Object>> analyzeFacesSync(final int requestId, String path,
+                                                       final AnalysisOptions options) throws IOException {
+        if (path.startsWith("file://")) path = path.replace("file://", "");
+
+        StageMetrics stages = options.collectMetrics ? new StageMetrics() : null;
+        StageProbe probe = stages != null ? stages : StageProbe.NONE;
+
+        Bitmap resized = decodeScaled(path, options.targetWidth, probe);
+        if (resized == null) throw new IOException("Cannot decode image " + path);
+
+        final int W = resized.getWidth();
+        final int H = resized.getHeight();
+        final List<Map<String, Object>> results;
+
+        AnalysisWorkspace ws = acquireWorkspace();
+        try {
+            final int[] pixels = ws.frame(W * H);
+            resized.getPixels(pixels, 0, W, 0, 0, W, H);
+            resized.recycle();
+            probe.lap("scale");
+
+            final Face[] faces = rankFaces(ws.faces, ws.detectFaces(pixels, W, H, options.maxFaces));
+            probe.lap("detect");
+
+            results = new ArrayList<>(Collections.<Map<String, Object>>nCopies(faces.length, null));
+            if (options.generateFaceImage) lastMatte = null;
+            // The stage probe is single-threaded, so the per-face engines run unprobed
+            final PersonalColorEngine engine = options.engine();
+            final AtomicInteger next = new AtomicInteger();
+            final CountDownLatch done = new CountDownLatch(faces.length);
+            final Throwable[] failure = new Throwable[1];
+            Runnable worker = new Runnable() {
+                @Override
+                public void run() {
+                    AnalysisWorkspace faceWs = acquireWorkspace();
+                    try {
+                        int i;
+                        while ((i = next.getAndIncrement()) < faces.length) {
+                            try {
+                                results.set(i, analyzeRankedFace(requestId, pixels, W, H, faces, i, faceWs,
+                                        engine, options));
+                            } catch (Throwable t) {
+                                synchronized (failure) {
+                                    if (failure[0] == null) failure[0] = t;
+                                }
+                            } finally {
+                                done.countDown();
+                            }
+                        }
+                    } finally {
+                        releaseWorkspace(faceWs);
+                    }
+                }
+            };
+            int helpers = Math.min(faces.length, poolSize()) - 1;
+            for (int i = 0; i < helpers; i++) {
+                try {
+                    executor().execute(worker);
+                } catch (RejectedExecutionException e) {
+                    break;
+                }
+            }
+            worker.run();
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while analyzing faces", e);
+            }
+            synchronized (failure) {
+                if (failure[0] instanceof RuntimeException) throw (RuntimeException) failure[0];
+                if (failure[0] instanceof Error) throw (Error) failure[0];
             }
+            probe.lap("faces");
+        } finally {
+            releaseWorkspace(ws);
         }
-        if (cnt == 0) return new int[]{210, 180, 160};
-        return new int[]{(int) (sumR / cnt), (int) (sumG / cnt), (int) (sumB / cnt)};
+
+        if (stages != null) {
+            metrics.record(stages);
+            postMetrics(requestId, stages);
+        }
+        return results;
     }
 
-    private boolean isSkinTone(float[] hsv) {
-        float h = hsv[0], s = hsv[1], v = hsv[2];
-        boolean hOk = (h >= 0 && h <= 50) || (h >= 340 && h <= 360);
-        boolean sOk = s >= 0.12f && s <= 0.78f;
-        boolean vOk = v >= 0.18f && v <= 0.96f;
-        return hOk && sOk && vOk;
+    /**
+     * Engine run for faces[rank] with its position in the frame. The best
+     * face's crop and segmentation are kept for Refine while ws still holds
+     * them.
+     */
+    private Map<String, Object> analyzeRankedFace(int requestId, int[] pixels, int W, int H, Face[] faces,
+                                                  int rank, AnalysisWorkspace ws, PersonalColorEngine engine,
+                                                  AnalysisOptions options) {
+        Region crop = faceRegion(faces[rank], W, H);
+        Map<String, Object> result = analyzeCrop(requestId, pixels, W, crop, ws,
+                engine, options, StageProbe.NONE, options.generateFaceImage);
+        if (rank == 0 && options.generateFaceImage) keepForRefine(pixels, W, crop, ws.segmentation());
+        result.put("rank", rank + 1);
+        result.put("confidence", (double) faces[rank].confidence());
+        result.put("x", crop.left / (double) W);
+        result.put("y", crop.top / (double) H);
+        result.put("width", crop.width() / (double) W);
+        result.put("height", crop.height() / (double) H);
+        return result;
     }
 
-    private float[] rgbToHsv(int r, int g, int b) {
-        float[] hsv = new float[3];
-        Color.RGBToHSV(r, g, b, hsv);
-        return hsv;
+    /** The first found faces, best first by confidence times face area. */
+    private static Face[] rankFaces(Face[] detected, int found) {
+        Face[] ranked = Arrays.copyOf(detected, found);
+        Arrays.sort(ranked, new Comparator<Face>() {
+            @Override
+            public int compare(Face a, Face b) {
+                return Float.compare(score(b), score(a));
+            }
+
+            private float score(Face f) {
+                return f.confidence() * f.eyesDistance() * f.eyesDistance();
+            }
+        });
+        return ranked;
     }
 
-    // =========================================================================
-    //  FILE I/O
-    // =========================================================================
+    /**
+     * Converts a raw frame into frameBuffer. Direct buffers are copied into
+     * frameBytes first, which is kept for the next frame of the same size.
+     */
+    private void convertFrame(Object frame, int width, int height, String format, int step, int rotation) {
+        String f = format == null ? "" : format.trim().toUpperCase(java.util.Locale.US);
+        if (frame instanceof int[]) {
+            if (!f.equals("ARGB")) throw new IllegalArgumentException("int arrays must be ARGB");
+            FrameConverter.argbToArgb((int[]) frame, width, height, step, rotation, frameBuffer);
+            return;
+        }
 
-    private String saveFaceImage(Bitmap bmp, String prefix) {
-        try {
-            File dir = new File(container.$form().getCacheDir(), FACE_IMAGES_DIR);
-            if (!dir.exists()) dir.mkdirs();
+        byte[] bytes;
+        if (frame instanceof byte[]) {
+            bytes = (byte[]) frame;
+        } else if (frame instanceof ByteBuffer) {
+            ByteBuffer src = ((ByteBuffer) frame).duplicate();
+            if (frameBytes.length != src.remaining()) frameBytes = new byte[src.remaining()];
+            src.get(frameBytes);
+            bytes = frameBytes;
+        } else {
+            throw new IllegalArgumentException("Unsupported frame type "
+                    + (frame == null ? "null" : frame.getClass().getSimpleName()));
+        }
 
-            String ts = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault()).format(new Date());
-            File file = new File(dir, prefix + "_" + ts + ".png");
+        if (f.equals("NV21")) {
+            FrameConverter.nv21ToArgb(bytes, width, height, step, rotation, frameBuffer);
+        } else if (f.equals("ARGB") || f.equals("RGBA")) {
+            FrameConverter.bytesToArgb(bytes, f.equals("RGBA"), width, height, step, rotation, frameBuffer);
+        } else {
+            throw new IllegalArgumentException("Unknown format " + format + " (use NV21, ARGB or RGBA)");
+        }
+    }
 
-            FileOutputStream out = new FileOutputStream(file);
-            bmp.compress(Bitmap.CompressFormat.PNG, 100, out);
-            out.flush();
-            out.close();
+    private AnalysisWorkspace acquireWorkspace() {
+        synchronized (workspaces) {
+            AnalysisWorkspace ws = workspaces.poll();
+            return ws != null ? ws : new AnalysisWorkspace();
+        }
+    }
 
-            return "file://" + file.getAbsolutePath();
-        } catch (Exception e) {
-            e.printStackTrace();
-            return "";
+    private void releaseWorkspace(AnalysisWorkspace ws) {
+        synchronized (workspaces) {
+            if (workspaces.size() < MAX_IDLE_WORKSPACES) {
+                workspaces.push(ws);
+                return;
+            }
         }
+        ws.release();
     }
 
     // =========================================================================
-    //  CLASSIFICAÇÃO COMPLETA - 12 ESTAÇÕES SAZONAIS
+    //  DECODIFICAÇÃO
     // =========================================================================
 
-    private Map<String, Object> classify(int[] rgb, Map<String, Object> features) {
-        int r = rgb[0], g = rgb[1], b = rgb[2];
-
-        // Análise de subtom detalhada
-        int rgd = r - g;
-        int gbd = g - b;
-        int rbd = r - b;
-
-        String undertone;
-        String undertoneDetail;
-
-        // Classificação de subtom mais precisa
-        if (rgd > 25 && rbd > 30) {
-            undertone = "Quente";
-            undertoneDetail = "Dourado Intenso";
-        } else if (rgd > 15 && rbd > 20) {
-            undertone = "Quente";
-            undertoneDetail = "Dourado Médio";
-        } else if (rgd > 5 && rbd > 10) {
-            undertone = "Quente";
-            undertoneDetail = "Dourado Suave";
-        } else if (gbd > 20 && rbd < 10) {
-            undertone = "Frio";
-            undertoneDetail = "Rosado Intenso";
-        } else if (gbd > 10 && rbd < 5) {
-            undertone = "Frio";
-            undertoneDetail = "Rosado Médio";
-        } else if (gbd > 5) {
-            undertone = "Frio";
-            undertoneDetail = "Rosado Suave";
-        } else if (Math.abs(rgd) < 8 && Math.abs(gbd) < 8 && Math.abs(rbd) < 15) {
-            undertone = "Neutro";
-            undertoneDetail = "Neutro Equilibrado";
-        } else if (rgd > 8 && rbd > 12 && gbd < 3) {
-            undertone = "Quente";
-            undertoneDetail = "Pêssego";
-        } else if (gbd > 5 && rbd > 5 && rgd < 5) {
-            undertone = "Frio";
-            undertoneDetail = "Oliva";
-        } else {
-            undertone = "Neutro";
-            undertoneDetail = "Neutro Suave";
-        }
-
-        float[] hsv = new float[3];
-        Color.RGBToHSV(r, g, b, hsv);
-        float hue = hsv[0];
-        float saturation = hsv[1];
-        float value = hsv[2];
-
-        // Obter características da análise facial
-        String contrast = (String) features.get("contrast");
-        String intensity = (String) features.get("intensity");
-        
-        // Determinar temperatura (Quente vs Frio)
-        boolean isWarm = undertone.equals("Quente");
-        
-        // Determinar claridade (Claro vs Escuro)
-        boolean isLight = value > 0.6f;
-        boolean isDark = value < 0.4f;
-        
-        // Determinar cromaticidade (Brilhante vs Suave)
-        boolean isClear = saturation > 0.45f || intensity.equals("Brilhante");
-        boolean isSoft = saturation < 0.35f || intensity.equals("Suave");
-
-        // CLASSIFICAÇÃO NAS 12 ESTAÇÕES SAZONAIS
-        String season = "";
-        String seasonFull = "";
-        String seasonCategory = "";
-
-        if (isWarm) {
-            // Família QUENTE (Primavera e Outono)
-            if (isLight) {
-                // Primavera (claras)
-                if (isClear) {
-                    season = "Bright Spring";
-                    seasonFull = "Primavera Brilhante";
-                    seasonCategory = "spring_bright";
-                } else if (isSoft) {
-                    season = "Light Spring";
-                    seasonFull = "Primavera Clara";
-                    seasonCategory = "spring_light";
-                } else {
-                    season = "Warm Spring";
-                    seasonFull = "Primavera Quente";
-                    seasonCategory = "spring_warm";
-                }
-            } else {
-                // Outono (escuras)
-                if (isClear) {
-                    season = "Warm Autumn";
-                    seasonFull = "Outono Quente";
-                    seasonCategory = "autumn_warm";
-                } else if (isSoft) {
-                    season = "Soft Autumn";
-                    seasonFull = "Outono Suave";
-                    seasonCategory = "autumn_soft";
-                } else {
-                    season = "Deep Autumn";
-                    seasonFull = "Outono Escuro";
-                    seasonCategory = "autumn_deep";
-                }
-            }
-        } else {
-            // Família FRIA (Verão e Inverno)
-            if (isLight) {
-                // Verão (claras)
-                if (isClear) {
-                    season = "Light Summer";
-                    seasonFull = "Verão Claro";
-                    seasonCategory = "summer_light";
-                } else if (isSoft) {
-                    season = "Soft Summer";
-                    seasonFull = "Verão Suave";
-                    seasonCategory = "summer_soft";
-                } else {
-                    season = "Cool Summer";
-                    seasonFull = "Verão Frio";
-                    seasonCategory = "summer_cool";
-                }
-            } else {
-                // Inverno (escuras)
-                if (isClear) {
-                    season = "Bright Winter";
-                    seasonFull = "Inverno Brilhante";
-                    seasonCategory = "winter_bright";
-                } else if (isSoft) {
-                    season = "Cool Winter";
-                    seasonFull = "Inverno Frio";
-                    seasonCategory = "winter_cool";
-                } else {
-                    season = "Deep Winter";
-                    seasonFull = "Inverno Escuro";
-                    seasonCategory = "winter_deep";
-                }
-            }
+    /**
+     * Decodes the image directly at (roughly) the working width. The bounds are
+     * read first so the decoder can subsample by a power of two; peak memory is
+     * then proportional to targetW instead of the camera resolution.
+     */
+    private Bitmap decodeScaled(String path, int targetW, StageProbe probe) {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, opts);
+        int srcW = opts.outWidth;
+        int srcH = opts.outHeight;
+        if (srcW <= 0 || srcH <= 0) return null;
+
+        opts.inJustDecodeBounds = false;
+        opts.inSampleSize = computeSampleSize(srcW, targetW);
+        opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        Bitmap sampled = BitmapFactory.decodeFile(path, opts);
+        if (sampled == null) return null;
+        probe.lap("decode");
+
+        int targetH = (int) ((targetW / (float) srcW) * srcH);
+        if (sampled.getWidth() == targetW && sampled.getHeight() == targetH) return sampled;
+
+        Bitmap resized = Bitmap.createScaledBitmap(sampled, targetW, targetH, true);
+        if (resized != sampled) sampled.recycle();
+        return resized;
+    }
+
+    /**
+     * Decodes only the face box from the file. The box is given in the
+     * coordinates of a W x H copy of the image; it is mapped to file pixels
+     * and decoded at no more than FaceCropWidth across. Returns null when the
+     * format has no region decoder.
+     */
+    private Bitmap decodeFaceCrop(String path, Region box, int W, int H, AnalysisOptions options) {
+        BitmapRegionDecoder decoder;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(path, false);
+        } catch (IOException e) {
+            return null;
+        }
+        if (decoder == null) return null;
+        try {
+            int srcW = decoder.getWidth();
+            int srcH = decoder.getHeight();
+            float sx = srcW / (float) W;
+            float sy = srcH / (float) H;
+            Rect rect = new Rect((int) (box.left * sx), (int) (box.top * sy),
+                    Math.min(srcW, Math.round(box.right * sx)), Math.min(srcH, Math.round(box.bottom * sy)));
+            if (rect.width() <= 0 || rect.height() <= 0) return null;
+
+            BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inSampleSize = computeSampleSize(rect.width(), options.faceCropWidth);
+            opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            Bitmap crop = decoder.decodeRegion(rect, opts);
+            if (crop == null || crop.getWidth() <= options.faceCropWidth) return crop;
+
+            int ch = Math.max(1, Math.round(crop.getHeight() * options.faceCropWidth / (float) crop.getWidth()));
+            Bitmap scaled = Bitmap.createScaledBitmap(crop, options.faceCropWidth, ch, true);
+            if (scaled != crop) crop.recycle();
+            return scaled;
+        } finally {
+            decoder.recycle();
         }
+    }
 
-        YailList palettes = buildAllPalettes(r, g, b, hsv, season, undertone, contrast, intensity);
-
-        Map<String, Object> result = new HashMap<>();
-        result.put("r", r);
-        result.put("g", g);
-        result.put("b", b);
-        result.put("undertone", undertone);
-        result.put("undertoneDetail", undertoneDetail);
-        result.put("contrast", contrast);
-        result.put("intensity", intensity);
-        result.put("season", season);
-        result.put("seasonFull", seasonFull);
-        result.put("seasonCategory", seasonCategory);
-        result.put("palettes", palettes);
-        
-        return result;
+    /** Largest power of two that keeps the decoded width at or above targetW. */
+    private static int computeSampleSize(int srcW, int targetW) {
+        int sample = 1;
+        while (srcW / (sample * 2) >= targetW) sample *= 2;
+        return sample;
+    }
+
+    /** Face box for a FaceDetector hit, in frame coordinates. */
+    private static Region faceRegion(Face face, int width, int height) {
+        PointF mid = new PointF();
+        face.getMidPoint(mid);
+        return Region.face(mid.x, mid.y, face.eyesDistance(), width, height);
     }
 
     // =========================================================================
-    //  PALETTE GENERATION — 15 paletas personalizadas
+    //  FILE I/O
     // =========================================================================
 
-    private YailList buildAllPalettes(int r, int g, int b, float[] hsv, 
-                                      String season, String undertone, 
-                                      String contrast, String intensity) {
-        float h = hsv[0];
-        float s = hsv[1];
-        float v = hsv[2];
-
-        List<Object> all = new ArrayList<>();
-
-        // Paleta 1-6: Teoria das Cores (baseada no tom de pele)
-        all.add(palette("Monochromatic",
-                hsvHex(h, clamp(s - 0.35f), clamp(v + 0.25f)),
-                hsvHex(h, clamp(s - 0.18f), clamp(v + 0.12f)),
-                hsvHex(h, s, v),
-                hsvHex(h, clamp(s + 0.18f), clamp(v - 0.12f)),
-                hsvHex(h, clamp(s + 0.30f), clamp(v - 0.22f))
-        ));
-
-        all.add(palette("Analogous",
-                hsvHex(rotH(h, -60), s, v),
-                hsvHex(rotH(h, -30), s, v),
-                hsvHex(h, s, v),
-                hsvHex(rotH(h, 30), s, v),
-                hsvHex(rotH(h, 60), s, v)
-        ));
-
-        float hC = rotH(h, 180);
-        all.add(palette("Complementary",
-                hsvHex(h, s, clamp(v + 0.10f)),
-                hsvHex(h, s, v),
-                hsvHex(h, clamp(s + 0.15f), clamp(v - 0.15f)),
-                hsvHex(hC, s, v),
-                hsvHex(hC, clamp(s - 0.15f), clamp(v + 0.10f))
-        ));
-
-        // Paletas 7-15: Baseadas na estação sazonal
-        if (season.contains("Spring")) {
-            // Primavera - cores vibrantes e quentes
-            all.add(palette("Spring Vibrant", "#FF6B6B", "#FFB347", "#FFD966", "#98FB98", "#87CEEB"));
-            all.add(palette("Spring Pastel", "#FFB6C1", "#FFDAB9", "#FFFACD", "#E6E6FA", "#B0E0E6"));
-            all.add(palette("Spring Bright", "#FF4500", "#FF8C00", "#FFD700", "#ADFF2F", "#00CED1"));
-        } else if (season.contains("Summer")) {
-            // Verão - cores suaves e frias
-            all.add(palette("Summer Soft", "#B0C4DE", "#B0E0E6", "#D8BFD8", "#DDA0DD", "#E6E6FA"));
-            all.add(palette("Summer Cool", "#87CEEB", "#ADD8E6", "#B0C4DE", "#C6E2FF", "#E0FFFF"));
-            all.add(palette("Summer Pastel", "#FFB6C1", "#FFC0CB", "#FFDAB9", "#E0FFFF", "#F0FFF0"));
-        } else if (season.contains("Autumn")) {
-            // Outono - cores terrosas e quentes
-            all.add(palette("Autumn Earth", "#8B4513", "#A0522D", "#CD853F", "#D2B48C", "#F4A460"));
-            all.add(palette("Autumn Warm", "#B22222", "#CD5C5C", "#D2691E", "#B8860B", "#9ACD32"));
-            all.add(palette("Autumn Rich", "#800000", "#8B0000", "#B8860B", "#556B2F", "#2E8B57"));
-        } else if (season.contains("Winter")) {
-            // Inverno - cores intensas e frias
-            all.add(palette("Winter Cool", "#4169E1", "#0000CD", "#00008B", "#483D8B", "#191970"));
-            all.add(palette("Winter Bright", "#DC143C", "#B22222", "#8B0000", "#FF1493", "#9400D3"));
-            all.add(palette("Winter Jewel", "#9932CC", "#8A2BE2", "#4B0082", "#2E0854", "#191970"));
-        }
-
-        // Paleta baseada no contraste
-        if (contrast.equals("Alto")) {
-            all.add(palette("High Contrast", "#000000", "#FFFFFF", "#FF0000", "#0000FF", "#FFFF00"));
-        } else if (contrast.equals("Médio")) {
-            all.add(palette("Medium Contrast", "#696969", "#D3D3D3", "#B22222", "#2E8B57", "#1E90FF"));
-        } else {
-            all.add(palette("Low Contrast", "#D3D3D3", "#F5F5F5", "#FFE4E1", "#E6E6FA", "#F0FFF0"));
-        }
-
-        // Paleta baseada na intensidade
-        if (intensity.equals("Brilhante")) {
-            all.add(palette("Bright Palette", "#FF1493", "#FF4500", "#FFD700", "#00FF00", "#00BFFF"));
-        } else {
-            all.add(palette("Soft Palette", "#FFB6C1", "#FFDAB9", "#E6E6FA", "#B0E0E6", "#D3D3D3"));
+    /**
+     * Encodes bmp into the face image store and returns its file:// path.
+     * Takes ownership of bmp: it is recycled once written. With
+     * AsyncFaceImageWrite the path is returned right away and FaceImageSaved
+     * fires when the file is complete; when the io queue is full the image
+     * is written inline and confirmFaceImage fires it after the result.
+     */
+    private String saveFaceImage(final int requestId, final Bitmap bmp, String prefix, AnalysisOptions options) {
+        final String format = options.faceImageFormat;
+        final Bitmap.CompressFormat compress = compressFormat(format);
+        final int quality = compressQuality(format, options.faceImageQuality);
+        final FaceImageStore store = faceImages();
+        final File file = store.newFile(prefix, compress == Bitmap.CompressFormat.PNG ? ".png" : ".webp");
+        final String path = "file://" + file.getAbsolutePath();
+
+        if (options.asyncFaceImageWrite && store.writeAsync(new Runnable() {
+            @Override
+            public void run() {
+                final boolean saved = writeImage(bmp, compress, quality, file);
+                store.scheduleCleanup();
+                container.$form().runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        FaceImageSaved(requestId, saved ? path : "", saved);
+                    }
+                });
+            }
+        })) {
+            queuedFaceImages.add(requestId + "|" + path);
+            return path;
         }
 
-        // Paleta neutra universal
-        all.add(palette("Neutral Harmony",
-                hsvHex(h, 0.04f, 0.96f),
-                hsvHex(h, 0.07f, 0.78f),
-                hsvHex(h, 0.09f, 0.56f),
-                hsvHex(h, 0.11f, 0.32f),
-                hsvHex(h, 0.13f, 0.12f)
-        ));
+        // Queue full or a synchronous write: FaceImageSaved comes from confirmFaceImage
+        boolean saved = writeImage(bmp, compress, quality, file);
+        store.scheduleCleanup();
+        return saved ? path : "";
+    }
 
-        return YailList.makeList(all);
+    /** Drops the queued-write entries a request left behind because its analysis failed. */
+    private void forgetQueuedFaceImages(int requestId) {
+        String prefix = requestId + "|";
+        for (Iterator<String> it = queuedFaceImages.iterator(); it.hasNext(); ) {
+            if (it.next().startsWith(prefix)) it.remove();
+        }
     }
 
-    // ── Palette helpers ────────────────────────────────────────────────────────
+    private void confirmFaceImage(int requestId, Map<String, Object> result, AnalysisOptions options) {
+        confirmFaceImage(requestId, (String) result.get("faceImagePath"), options);
+    }
 
-    private YailList palette(String name, String c1, String c2, String c3, String c4, String c5) {
-        return YailList.makeList(Arrays.asList(name, c1, c2, c3, c4, c5));
+    /**
+     * With AsyncFaceImageWrite, fires FaceImageSaved for a face image that
+     * did not go through the io queue: one written inline because the queue
+     * was full, or one of a cached result, which is already on disk. Runs on
+     * the UI thread right after the event that carried the path, so every
+     * face image of an asynchronous request gets its FaceImageSaved.
+     */
+    private void confirmFaceImage(int requestId, String facePath, AnalysisOptions options) {
+        if (!options.asyncFaceImageWrite) return;
+        if (facePath == null) facePath = "";
+        if (queuedFaceImages.remove(requestId + "|" + facePath)) return;
+        FaceImageSaved(requestId, facePath, !facePath.isEmpty());
     }
 
-    private String hsvHex(float h, float s, float v) {
-        int c = Color.HSVToColor(new float[]{h, s, v});
-        return String.format("#%02X%02X%02X", Color.red(c), Color.green(c), Color.blue(c));
+    /**
+     * Encodes bmp into a temporary file next to file and renames it into
+     * place, so file only exists once complete: a cached result that points
+     * to an image still being written misses instead of reading half of it.
+     */
+    private static boolean writeImage(Bitmap bmp, Bitmap.CompressFormat compress, int quality, File file) {
+        File part = new File(file.getPath() + PARTIAL_SUFFIX);
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(part), IMAGE_WRITE_BUFFER);
+            try {
+                if (!bmp.compress(compress, quality, out)) throw new IOException("Bitmap.compress failed");
+            } finally {
+                out.close();
+            }
+            if (!part.renameTo(file)) throw new IOException("Cannot rename " + part + " to " + file);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            part.delete();
+            return false;
+        } finally {
+            bmp.recycle();
+        }
     }
 
-    private float rotH(float h, float deg) {
-        float r = (h + deg) % 360f;
-        return r < 0f ? r + 360f : r;
+    @SuppressWarnings("deprecation")
+    private static Bitmap.CompressFormat compressFormat(String format) {
+        if (FORMAT_WEBP_LOSSLESS.equals(format)) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) return Bitmap.CompressFormat.WEBP_LOSSLESS;
+            // On Android 10, WEBP at quality 100 is encoded losslessly
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) return Bitmap.CompressFormat.WEBP;
+            return Bitmap.CompressFormat.PNG;
+        }
+        if (FORMAT_WEBP.equals(format)) {
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
+                    ? Bitmap.CompressFormat.WEBP_LOSSY
+                    : Bitmap.CompressFormat.WEBP;
+        }
+        return Bitmap.CompressFormat.PNG;
     }
 
-    private float clamp(float val) {
-        return Math.max(0f, Math.min(1f, val));
+    private static int compressQuality(String format, int quality) {
+        if (FORMAT_WEBP_LOSSLESS.equals(format)) return 100;
+        if (FORMAT_WEBP.equals(format)) {
+            // Plain WEBP at 100 would switch to lossless on Android 10
+            return Build.VERSION.SDK_INT < Build.VERSION_CODES.R ? Math.min(quality, 99) : quality;
+        }
+        return 100;
     }
 
     // =========================================================================
     //  EVENTOS
     // =========================================================================
 
-    @SimpleEvent(description = "Fires when analysis is complete. Returns complete personal color analysis.")
-    public void AnalysisResult(int r, int g, int b,
+    @SimpleEvent(description = "Fires when analysis is complete. Returns complete personal color analysis. "
+            + "requestId is the value returned by the Analyze call. details holds extra values such as "
+            + "skinConfidence (0 to 1: how much of the face center agrees with the skin color; 0 when no "
+            + "face was found), seasonConfidence (0 to 1), topSeasons, a list of [season, confidence] "
+            + "pairs, best first, and eyeColor and hairColor (#RRGGBB, only when a face was found and "
+            + "AnalyzeFeatures is on).")
+    public void AnalysisResult(int requestId,
+                               int r, int g, int b,
                                String undertone,
                                String undertoneDetail,
                                String contrast,
@@ -834,8 +1727,10 @@ public class SmartPersonalColor extends AndroidNonvisibleComponent {
                                String seasonFull,
                                String seasonCategory,
                                YailList palettes,
-                               String faceImagePath) {
+                               String faceImagePath,
+                               YailDictionary details) {
         EventDispatcher.dispatchEvent(this, "AnalysisResult",
+                requestId,
                 r, g, b,
                 undertone,
                 undertoneDetail,
@@ -845,11 +1740,84 @@ public class SmartPersonalColor extends AndroidNonvisibleComponent {
                 seasonFull,
                 seasonCategory,
                 palettes,
-                faceImagePath != null ? faceImagePath : "");
+                faceImagePath != null ? faceImagePath : "",
+                details);
+    }
+
+    @SimpleEvent(description = "Fires for every analyzed AnalyzeFrame call with the result smoothed over "
+            + "the last framesInWindow frames. No face image is produced for frames.")
+    public void FrameResult(int frameId,
+                            int r, int g, int b,
+                            String undertone,
+                            String undertoneDetail,
+                            String contrast,
+                            String intensity,
+                            String season,
+                            String seasonFull,
+                            String seasonCategory,
+                            YailList palettes,
+                            int framesInWindow) {
+        EventDispatcher.dispatchEvent(this, "FrameResult",
+                frameId,
+                r, g, b,
+                undertone,
+                undertoneDetail,
+                contrast,
+                intensity,
+                season,
+                seasonFull,
+                seasonCategory,
+                palettes,
+                framesInWindow);
+    }
+
+    @SimpleEvent(description = "Fires when an AnalyzeFaces call is complete. faces holds one dictionary per "
+            + "face, best first, with the AnalysisResult values plus rank, confidence and the face box "
+            + "(x, y, width, height as fractions of the image size). faceCount is 0 when no face was found.")
+    public void FacesAnalyzed(int requestId, YailList faces, int faceCount) {
+        EventDispatcher.dispatchEvent(this, "FacesAnalyzed", requestId, faces, faceCount);
+    }
+
+    @SimpleEvent(description = "Fires when a Refine call is done, with the new face image (empty if it "
+            + "could not be written). With AsyncFaceImageWrite the file is complete once FaceImageSaved "
+            + "fires for the same request id.")
+    public void FaceImageRefined(int requestId, String faceImagePath) {
+        EventDispatcher.dispatchEvent(this, "FaceImageRefined", requestId, faceImagePath);
+    }
+
+    @SimpleEvent(description = "With AsyncFaceImageWrite, fires once for every face image of a result "
+            + "(AnalysisResult, each face of FacesAnalyzed, each image of BatchResult, FaceImageRefined) "
+            + "when the file is complete: after the background write, or right after the result when the "
+            + "image was written inline or the result came from the cache. success is false if it could "
+            + "not be written.")
+    public void FaceImageSaved(int requestId, String faceImagePath, boolean success) {
+        EventDispatcher.dispatchEvent(this, "FaceImageSaved", requestId, faceImagePath, success);
+    }
+
+    @SimpleEvent(description = "Fires before the result of an analysis made with CollectMetrics on "
+            + "(per image, with the batch id, for AnalyzeBatch). timings maps each stage to milliseconds; "
+            + "bytes maps it to the approximate Java plus native heap growth during the stage.")
+    public void Metrics(int requestId, YailDictionary timings, YailDictionary bytes) {
+        EventDispatcher.dispatchEvent(this, "Metrics", requestId, timings, bytes);
+    }
+
+    @SimpleEvent(description = "Fires periodically while an AnalyzeBatch call is running.")
+    public void BatchProgress(int batchId, int completed, int total) {
+        EventDispatcher.dispatchEvent(this, "BatchProgress", batchId, completed, total);
+    }
+
+    @SimpleEvent(description = "Fires once when every image of an AnalyzeBatch call is done. results holds "
+            + "one dictionary per image, in input order; consensusSeason and consensusUndertone are "
+            + "the most frequent values among the images that could be analyzed.")
+    public void BatchResult(int batchId, YailList results,
+                            String consensusSeason, String consensusUndertone,
+                            int analyzedCount) {
+        EventDispatcher.dispatchEvent(this, "BatchResult",
+                batchId, results, consensusSeason, consensusUndertone, analyzedCount);
     }
 
-    @SimpleEvent(description = "Fires when analysis fails. Provides a descriptive error message.")
-    public void Error(String message) {
-        EventDispatcher.dispatchEvent(this, "Error", message);
+    @SimpleEvent(description = "Fires when analysis fails. Provides the request id and a descriptive error message.")
+    public void Error(int requestId, String message) {
+        EventDispatcher.dispatchEvent(this, "Error", requestId, message);
     }
 }
\ No newline at end of file
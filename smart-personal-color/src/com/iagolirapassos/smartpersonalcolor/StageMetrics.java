@@ -0,0 +1,55 @@
+package com.iagolirapassos.smartpersonalcolor;
+
+import android.os.Debug;
+
+import com.iagolirapassos.smartpersonalcolor.core.StageProbe;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Wall time and memory growth of each stage of one analysis.
+ *
+ * Memory is the change in used Java heap plus native heap (where bitmap
+ * pixels live on Android 8+) across the stage. Both are process-wide, so
+ * the figure is approximate: other threads' work is included, and a GC
+ * during the stage hides what it allocated (negative deltas count as 0).
+ */
+final class StageMetrics implements StageProbe {
+
+    final Map<String, Long> nanos = new LinkedHashMap<>();
+    final Map<String, Long> bytes = new LinkedHashMap<>();
+
+    private final long start;
+    private long lastNanos;
+    private long lastBytes;
+
+    StageMetrics() {
+        start = lastNanos = System.nanoTime();
+        lastBytes = memoryInUse();
+    }
+
+    @Override
+    public void lap(String stage) {
+        long now = System.nanoTime();
+        long mem = memoryInUse();
+        add(nanos, stage, now - lastNanos);
+        add(bytes, stage, Math.max(0, mem - lastBytes));
+        lastNanos = now;
+        lastBytes = mem;
+    }
+
+    long totalNanos() {
+        return lastNanos - start;
+    }
+
+    private static void add(Map<String, Long> map, String stage, long value) {
+        Long old = map.get(stage);
+        map.put(stage, old == null ? value : old + value);
+    }
+
+    private static long memoryInUse() {
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory() + Debug.getNativeHeapAllocatedSize();
+    }
+}
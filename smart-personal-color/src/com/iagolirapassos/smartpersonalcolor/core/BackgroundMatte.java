@@ -0,0 +1,414 @@
+package com.iagolirapassos.smartpersonalcolor.core;
+
+import java.util.Arrays;
+
+/**
+ * BACKGROUND REMOVAL: mattes the face out of its crop with a skin-color
+ * score weighted by an elliptical falloff, softened by an iterated box blur.
+ */
+public final class BackgroundMatte {
+
+    // Weight stored in the ellipse map for pixels inside the inner edge (always opaque)
+    private static final float ELLIPSE_INNER = 2f;
+
+    // Smallest row/column band worth handing to another thread
+    private static final int MIN_BAND = 32;
+
+    // matteAlpha for every 8-bit mask value of the fixed-point path
+    private static final int[] MATTE_CURVE = new int[256];
+
+    // exp(-x) for x in [0, EXP_LUT_MAX], linearly interpolated. The absolute
+    // error is below 3e-5 and exp(-16) ~ 1e-7 is treated as 0.
+    private static final int EXP_LUT_SIZE = 1024;
+    private static final float EXP_LUT_MAX = 16f;
+    private static final float EXP_LUT_SCALE = EXP_LUT_SIZE / EXP_LUT_MAX;
+    private static final float[] EXP_LUT = new float[EXP_LUT_SIZE + 2];
+
+    static {
+        for (int i = 0; i < EXP_LUT.length; i++) {
+            EXP_LUT[i] = (float) Math.exp(-i / EXP_LUT_SCALE);
+        }
+        for (int i = 0; i < MATTE_CURVE.length; i++) {
+            MATTE_CURVE[i] = matteAlpha(i / 255f);
+        }
+    }
+
+    private BackgroundMatte() {
+    }
+
+    /** Mattes the crop with the default MattingParams. */
+    public static void removeBackground(int[] frame, int stride, Region crop, float[] skinRef,
+                                        Workspace ws, int[] out, boolean parallel, boolean fixedPoint) {
+        removeBackground(frame, stride, crop, skinRef, MattingParams.DEFAULT, null, ws, out, parallel, fixedPoint);
+    }
+
+    /**
+     * Mattes the crop out of the frame buffer into out (crop-sized ARGB).
+     *
+     * Skin scores in the transition band use an allocation-free HSV
+     * conversion and a single exp lookup for the product of the three
+     * Gaussians, and the elliptical weights come from a map cached in the
+     * workspace per crop size and band. The resulting alpha matches the
+     * Math.exp path to within one alpha level (1/255); where that level
+     * straddles the 10/245 snap thresholds the pixel snaps to 0 or 255
+     * instead. With a segmentation of the same crop, pixels of cells inside
+     * the segmented skin score as skin whatever their color.
+     */
+    public static void removeBackground(int[] frame, int stride, Region crop, float[] skinRef,
+                                        MattingParams params, FaceSegmentation segmentation, Workspace ws,
+                                        int[] out, boolean parallel, boolean fixedPoint) {
+        int W = crop.width();
+        int H = crop.height();
+
+        // Copy the crop into the output buffer; alpha is filled in at the end
+        for (int y = 0; y < H; y++) {
+            System.arraycopy(frame, (crop.top + y) * stride + crop.left, out, y * W, W);
+        }
+        RawAlpha raw = new RawAlpha(out, W, null, segmentation);
+        matte(out, W, H, raw, skinRef, params, ws, parallel, fixedPoint);
+    }
+
+    /**
+     * Mattes a kept crop again with other parameters into out (crop-sized
+     * ARGB). Gives the same alpha as removeBackground with those parameters
+     * on the original frame, without converting a pixel to HSV after the
+     * first call on a source.
+     */
+    public static void refine(MatteSource source, MattingParams params, Workspace ws, int[] out,
+                              boolean parallel, boolean fixedPoint) {
+        int W = source.width;
+        int H = source.height;
+        System.arraycopy(source.pixels, 0, out, 0, W * H);
+        RawAlpha raw = new RawAlpha(out, W, source.planes(parallel), null);
+        matte(out, W, H, raw, source.skinRef, params, ws, parallel, fixedPoint);
+    }
+
+    /**
+     * Where the skin score of a pixel comes from: the squared HSV distances
+     * of a MatteSource, or the pixel itself, optionally overridden by the
+     * solid skin cells of a segmentation.
+     */
+    private static final class RawAlpha {
+        final int[] pixels;
+        final int W;
+        final float[] hue2, sat2, val2;
+        final byte[] solid;
+        final int cellStep, cellCols;
+
+        RawAlpha(int[] pixels, int W, float[][] planes, FaceSegmentation segmentation) {
+            this.pixels = pixels;
+            this.W = W;
+            this.hue2 = planes != null ? planes[0] : null;
+            this.sat2 = planes != null ? planes[1] : null;
+            this.val2 = planes != null ? planes[2] : null;
+            this.solid = segmentation != null ? segmentation.solid : null;
+            this.cellStep = segmentation != null ? segmentation.step : 1;
+            this.cellCols = segmentation != null ? segmentation.cols : 0;
+        }
+
+        /** Raw alpha of rows [from, to); one of alpha and alpha8 is null. */
+        void fill(int from, int to, float[] ellipse, float[] k, float[] alpha, byte[] alpha8) {
+            for (int y = from; y < to; y++) {
+                int cellRow = (y / cellStep) * cellCols;
+                for (int x = 0, idx = y * W; x < W; x++, idx++) {
+                    float a;
+                    if (hue2 != null) {
+                        a = planeAlpha(hue2[idx], sat2[idx], val2[idx], ellipse[idx], k);
+                    } else if (solid != null && solid[cellRow + x / cellStep] != 0) {
+                        a = planeAlpha(0f, 0f, 0f, ellipse[idx], k);
+                    } else {
+                        a = skinAlpha(pixels[idx], ellipse[idx], k);
+                    }
+                    if (alpha8 != null) alpha8[idx] = (byte) (a * 255f + 0.5f);
+                    else alpha[idx] = a;
+                }
+            }
+        }
+    }
+
+    /** Raw alpha, blur and alpha curve over pixels (W x H, alpha replaced in place). */
+    private static void matte(final int[] pixels, final int W, final int H, final RawAlpha raw, float[] skinRef,
+                              MattingParams params, Workspace ws, boolean parallel, boolean fixedPoint) {
+        int N = W * H;
+
+        float[] weights = ws.ellipse(W, H, params.inner, params.outer);
+        if (weights == null) {
+            weights = ws.newEllipse(W, H, params.inner, params.outer);
+            buildEllipseWeights(weights, W, H, params.inner, params.outer);
+        }
+        final float[] ellipse = weights;
+
+        float hueTol = params.hueTol(skinRef);
+        float satTol = params.satTol(skinRef);
+        float valTol = params.valTol(skinRef);
+
+        // exp(-a) * exp(-b) * exp(-c) == exp(-(a + b + c)): one lookup per pixel
+        final float[] k = {
+                skinRef[0], skinRef[1], skinRef[2],
+                1f / (2f * hueTol * hueTol),
+                1f / (2f * satTol * satTol),
+                1f / (2f * valTol * valTol)
+        };
+        int blurRadius = params.blurRadius(W, H);
+
+        // Every pass below works on disjoint row (or column) bands
+        if (fixedPoint) {
+            final byte[] alpha8 = ws.alpha8(N);
+            Parallel.forRange(H, MIN_BAND, parallel, new Parallel.Range() {
+                @Override
+                public void run(int from, int to) {
+                    raw.fill(from, to, ellipse, k, null, alpha8);
+                }
+            });
+
+            boxBlurAlpha8(alpha8, ws.blur8(N), W, H, blurRadius, 3, ws.reciprocals(blurRadius), parallel);
+
+            Parallel.forRange(H, MIN_BAND, parallel, new Parallel.Range() {
+                @Override
+                public void run(int from, int to) {
+                    for (int idx = from * W, end = to * W; idx < end; idx++) {
+                        pixels[idx] = (MATTE_CURVE[alpha8[idx] & 0xFF] << 24) | (pixels[idx] & 0x00FFFFFF);
+                    }
+                }
+            });
+            return;
+        }
+
+        final float[] rawAlpha = ws.alpha(N);
+        Parallel.forRange(H, MIN_BAND, parallel, new Parallel.Range() {
+            @Override
+            public void run(int from, int to) {
+                raw.fill(from, to, ellipse, k, rawAlpha, null);
+            }
+        });
+
+        final float[] blurred = boxBlurAlpha(rawAlpha, W, H, blurRadius, 3, parallel);
+
+        Parallel.forRange(H, MIN_BAND, parallel, new Parallel.Range() {
+            @Override
+            public void run(int from, int to) {
+                for (int idx = from * W, end = to * W; idx < end; idx++) {
+                    pixels[idx] = (matteAlpha(blurred[idx]) << 24) | (pixels[idx] & 0x00FFFFFF);
+                }
+            }
+        });
+    }
+
+    /** Final alpha byte for a blurred mask value: S-curve, then snap near 0 and 1. */
+    private static int matteAlpha(float a) {
+        int alpha = Math.round(sCurve(a) * 255f);
+        if (alpha < 10) alpha = 0;
+        if (alpha > 245) alpha = 255;
+        return alpha;
+    }
+
+    /**
+     * Raw alpha of one pixel: opaque inside the inner ellipse, transparent
+     * outside, skin score times the elliptical weight in the band. k holds
+     * the reference HSV followed by the three Gaussian factors.
+     */
+    private static float skinAlpha(int px, float ellipticW, float[] k) {
+        if (ellipticW == ELLIPSE_INNER) return 1.0f;
+        if (ellipticW == 0f) return 0.0f;
+
+        int r = (px >> 16) & 0xFF;
+        int g = (px >> 8) & 0xFF;
+        int b = px & 0xFF;
+
+        int max = Math.max(r, Math.max(g, b));
+        int min = Math.min(r, Math.min(g, b));
+        int delta = max - min;
+        float h = 0f, s = 0f;
+        if (delta != 0) {
+            if (r == max) h = (g - b) / (float) delta;
+            else if (g == max) h = 2f + (b - r) / (float) delta;
+            else h = 4f + (r - g) / (float) delta;
+            h *= 60f;
+            if (h < 0f) h += 360f;
+            s = delta / (float) max;
+        }
+
+        float dH = Math.abs(h - k[0]);
+        if (dH > 180f) dH = 360f - dH;
+
+        float dS = Math.abs(s - k[1]);
+        float dV = Math.abs(max / 255f - k[2]);
+
+        float skinScore = expNeg(dH * dH * k[3] + dS * dS * k[4] + dV * dV * k[5]);
+
+        return skinScore * ellipticW;
+    }
+
+    /** skinAlpha from precomputed squared hue, saturation and value distances. */
+    private static float planeAlpha(float hue2, float sat2, float val2, float ellipticW, float[] k) {
+        if (ellipticW == ELLIPSE_INNER) return 1.0f;
+        if (ellipticW == 0f) return 0.0f;
+        return expNeg(hue2 * k[3] + sat2 * k[4] + val2 * k[5]) * ellipticW;
+    }
+
+    /**
+     * Raised-cosine falloff between inner and outer of the face ellipse:
+     * ELLIPSE_INNER inside, 0 outside, the band weight in between.
+     */
+    private static void buildEllipseWeights(float[] weights, int W, int H, float inner, float outer) {
+        float cx = W / 2.0f;
+        float cy = H * 0.48f;
+        float rx = W * 0.46f;
+        float ry = H * 0.50f;
+
+        for (int y = 0, idx = 0; y < H; y++) {
+            float dy = (y - cy) / ry;
+            for (int x = 0; x < W; x++, idx++) {
+                float dx = (x - cx) / rx;
+                float rNorm = (float) Math.sqrt(dx * dx + dy * dy);
+
+                if (rNorm <= inner) {
+                    weights[idx] = ELLIPSE_INNER;
+                } else if (rNorm >= outer) {
+                    weights[idx] = 0f;
+                } else {
+                    float t = (rNorm - inner) / (outer - inner);
+                    weights[idx] = (float) (0.5f * (1f + Math.cos(Math.PI * t)));
+                }
+            }
+        }
+    }
+
+    private static float expNeg(float x) {
+        float f = x * EXP_LUT_SCALE;
+        if (f >= EXP_LUT_SIZE) return 0f;
+        int i = (int) f;
+        float a = EXP_LUT[i];
+        return a + (EXP_LUT[i + 1] - a) * (f - i);
+    }
+
+    /**
+     * Separable box blur, iterated. Horizontal passes are split across
+     * threads by rows and vertical passes by columns.
+     */
+    public static float[] boxBlurAlpha(float[] src, final int W, final int H, final int radius,
+                                       int iterations, boolean parallel) {
+        final float[] a = Arrays.copyOf(src, W * H);
+        final float[] b = new float[W * H];
+
+        for (int iter = 0; iter < iterations; iter++) {
+            Parallel.forRange(H, MIN_BAND, parallel, new Parallel.Range() {
+                @Override
+                public void run(int from, int to) {
+                    blurRows(a, b, W, radius, from, to);
+                }
+            });
+            Parallel.forRange(W, MIN_BAND, parallel, new Parallel.Range() {
+                @Override
+                public void run(int from, int to) {
+                    blurColumns(b, a, W, H, radius, from, to);
+                }
+            });
+        }
+        return a;
+    }
+
+    private static void blurRows(float[] a, float[] b, int W, int radius, int fromY, int toY) {
+        for (int y = fromY; y < toY; y++) {
+            float sum = 0;
+            int count = 0;
+            for (int x = 0; x <= radius && x < W; x++) {
+                sum += a[y * W + x];
+                count++;
+            }
+            for (int x = 0; x < W; x++) {
+                b[y * W + x] = sum / count;
+                int add = x + radius + 1;
+                int rem = x - radius;
+                if (add < W) { sum += a[y * W + add]; count++; }
+                if (rem >= 0) { sum -= a[y * W + rem]; count--; }
+            }
+        }
+    }
+
+    private static void blurColumns(float[] b, float[] a, int W, int H, int radius, int fromX, int toX) {
+        for (int x = fromX; x < toX; x++) {
+            float sum = 0;
+            int count = 0;
+            for (int y = 0; y <= radius && y < H; y++) {
+                sum += b[y * W + x];
+                count++;
+            }
+            for (int y = 0; y < H; y++) {
+                a[y * W + x] = sum / count;
+                int add = y + radius + 1;
+                int rem = y - radius;
+                if (add < H) { sum += b[add * W + x]; count++; }
+                if (rem >= 0) { sum -= b[rem * W + x]; count--; }
+            }
+        }
+    }
+
+    /**
+     * Fixed-point version of boxBlurAlpha on 8-bit planes. Window sums are
+     * integers and the division by the window count is a multiply by a Q16
+     * reciprocal, so the blur is division-free. The result ends up in a;
+     * b is scratch of the same size.
+     */
+    public static void boxBlurAlpha8(final byte[] a, final byte[] b, final int W, final int H,
+                                     final int radius, int iterations, final int[] recip,
+                                     boolean parallel) {
+        for (int iter = 0; iter < iterations; iter++) {
+            Parallel.forRange(H, MIN_BAND, parallel, new Parallel.Range() {
+                @Override
+                public void run(int from, int to) {
+                    blurRows8(a, b, W, radius, recip, from, to);
+                }
+            });
+            Parallel.forRange(W, MIN_BAND, parallel, new Parallel.Range() {
+                @Override
+                public void run(int from, int to) {
+                    blurColumns8(b, a, W, H, radius, recip, from, to);
+                }
+            });
+        }
+    }
+
+    private static void blurRows8(byte[] a, byte[] b, int W, int radius, int[] recip, int fromY, int toY) {
+        for (int y = fromY; y < toY; y++) {
+            int row = y * W;
+            int sum = 0;
+            int count = 0;
+            for (int x = 0; x <= radius && x < W; x++) {
+                sum += a[row + x] & 0xFF;
+                count++;
+            }
+            for (int x = 0; x < W; x++) {
+                b[row + x] = (byte) ((sum * recip[count] + 32768) >>> 16);
+                int add = x + radius + 1;
+                int rem = x - radius;
+                if (add < W) { sum += a[row + add] & 0xFF; count++; }
+                if (rem >= 0) { sum -= a[row + rem] & 0xFF; count--; }
+            }
+        }
+    }
+
+    private static void blurColumns8(byte[] b, byte[] a, int W, int H, int radius, int[] recip,
+                                     int fromX, int toX) {
+        for (int x = fromX; x < toX; x++) {
+            int sum = 0;
+            int count = 0;
+            for (int y = 0; y <= radius && y < H; y++) {
+                sum += b[y * W + x] & 0xFF;
+                count++;
+            }
+            for (int y = 0; y < H; y++) {
+                a[y * W + x] = (byte) ((sum * recip[count] + 32768) >>> 16);
+                int add = y + radius + 1;
+                int rem = y - radius;
+                if (add < H) { sum += b[add * W + x] & 0xFF; count++; }
+                if (rem >= 0) { sum -= b[rem * W + x] & 0xFF; count--; }
+            }
+        }
+    }
+
+    private static float sCurve(float t) {
+        t = Math.max(0f, Math.min(1f, t));
+        return t * t * (3f - 2f * t);
+    }
+}
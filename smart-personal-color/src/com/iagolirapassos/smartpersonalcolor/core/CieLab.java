@@ -0,0 +1,143 @@
+package com.iagolirapassos.smartpersonalcolor.core;
+
+/**
+ * sRGB to CIELAB (D65) and the CIEDE2000 color difference.
+ *
+ * Linearization is a 256-entry table and the cube root is a bit-level
+ * estimate refined by two Newton steps, so a conversion is a table lookup,
+ * a 3x3 matrix and three cube roots with no pow() calls. The array form
+ * converts a run of packed pixels into separate L, a and b planes.
+ */
+public final class CieLab {
+
+    /** sRGB channel value to linear light in [0, 1]. */
+    private static final float[] LINEAR = new float[256];
+
+    // sRGB -> XYZ (D65), each row already divided by the white point
+    private static final float XR = 0.4124564f / 0.95047f, XG = 0.3575761f / 0.95047f, XB = 0.1804375f / 0.95047f;
+    private static final float YR = 0.2126729f, YG = 0.7151522f, YB = 0.0721750f;
+    private static final float ZR = 0.0193339f / 1.08883f, ZG = 0.1191920f / 1.08883f, ZB = 0.9503041f / 1.08883f;
+
+    private static final float EPSILON = 216f / 24389f;
+    private static final float KAPPA = 24389f / 27f;
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            double c = i / 255.0;
+            LINEAR[i] = (float) (c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4));
+        }
+    }
+
+    private CieLab() {
+    }
+
+    /** L (0..100), a and b of an sRGB color, written to lab. */
+    public static void rgbToLab(int r, int g, int b, float[] lab) {
+        float lr = LINEAR[r], lg = LINEAR[g], lb = LINEAR[b];
+        float fx = f(XR * lr + XG * lg + XB * lb);
+        float fy = f(YR * lr + YG * lg + YB * lb);
+        float fz = f(ZR * lr + ZG * lg + ZB * lb);
+        lab[0] = 116f * fy - 16f;
+        lab[1] = 500f * (fx - fy);
+        lab[2] = 200f * (fy - fz);
+    }
+
+    public static float[] rgbToLab(int r, int g, int b) {
+        float[] lab = new float[3];
+        rgbToLab(r, g, b, lab);
+        return lab;
+    }
+
+    /**
+     * Converts pixels[from, to) (packed ARGB, alpha ignored) into the L, a and
+     * b planes at the same indices.
+     */
+    public static void toLab(int[] pixels, int from, int to, float[] l, float[] a, float[] b) {
+        for (int i = from; i < to; i++) {
+            int px = pixels[i];
+            float lr = LINEAR[(px >> 16) & 0xFF], lg = LINEAR[(px >> 8) & 0xFF], lb = LINEAR[px & 0xFF];
+            float fx = f(XR * lr + XG * lg + XB * lb);
+            float fy = f(YR * lr + YG * lg + YB * lb);
+            float fz = f(ZR * lr + ZG * lg + ZB * lb);
+            l[i] = 116f * fy - 16f;
+            a[i] = 500f * (fx - fy);
+            b[i] = 200f * (fy - fz);
+        }
+    }
+
+    /** Chroma C*ab of a Lab color. */
+    public static float chroma(float[] lab) {
+        return (float) Math.sqrt(lab[1] * lab[1] + lab[2] * lab[2]);
+    }
+
+    /** Hue angle h_ab in degrees, 0..360. */
+    public static float hue(float[] lab) {
+        float h = (float) Math.toDegrees(Math.atan2(lab[2], lab[1]));
+        return h < 0f ? h + 360f : h;
+    }
+
+    /** CIEDE2000 difference between two Lab colors (kL = kC = kH = 1). */
+    public static float deltaE2000(float[] lab1, float[] lab2) {
+        double l1 = lab1[0], a1 = lab1[1], b1 = lab1[2];
+        double l2 = lab2[0], a2 = lab2[1], b2 = lab2[2];
+
+        double cBar = (Math.sqrt(a1 * a1 + b1 * b1) + Math.sqrt(a2 * a2 + b2 * b2)) / 2;
+        double cBar7 = Math.pow(cBar, 7);
+        double g = 0.5 * (1 - Math.sqrt(cBar7 / (cBar7 + 6103515625.0)));   // 25^7
+        double a1p = (1 + g) * a1, a2p = (1 + g) * a2;
+        double c1p = Math.sqrt(a1p * a1p + b1 * b1), c2p = Math.sqrt(a2p * a2p + b2 * b2);
+        double h1p = hueDegrees(b1, a1p), h2p = hueDegrees(b2, a2p);
+
+        double dLp = l2 - l1;
+        double dCp = c2p - c1p;
+        double dhp = 0;
+        if (c1p * c2p != 0) {
+            dhp = h2p - h1p;
+            if (dhp > 180) dhp -= 360;
+            else if (dhp < -180) dhp += 360;
+        }
+        double dHp = 2 * Math.sqrt(c1p * c2p) * Math.sin(Math.toRadians(dhp / 2));
+
+        double lBarP = (l1 + l2) / 2;
+        double cBarP = (c1p + c2p) / 2;
+        double hBarP = h1p + h2p;
+        if (c1p * c2p != 0) {
+            if (Math.abs(h1p - h2p) <= 180) hBarP /= 2;
+            else hBarP = hBarP < 360 ? (hBarP + 360) / 2 : (hBarP - 360) / 2;
+        }
+
+        double t = 1 - 0.17 * Math.cos(Math.toRadians(hBarP - 30))
+                + 0.24 * Math.cos(Math.toRadians(2 * hBarP))
+                + 0.32 * Math.cos(Math.toRadians(3 * hBarP + 6))
+                - 0.20 * Math.cos(Math.toRadians(4 * hBarP - 63));
+        double dTheta = 30 * Math.exp(-Math.pow((hBarP - 275) / 25, 2));
+        double cBarP7 = Math.pow(cBarP, 7);
+        double rc = 2 * Math.sqrt(cBarP7 / (cBarP7 + 6103515625.0));
+        double lBar50 = (lBarP - 50) * (lBarP - 50);
+        double sl = 1 + 0.015 * lBar50 / Math.sqrt(20 + lBar50);
+        double sc = 1 + 0.045 * cBarP;
+        double sh = 1 + 0.015 * cBarP * t;
+        double rt = -Math.sin(Math.toRadians(2 * dTheta)) * rc;
+
+        double x = dLp / sl, y = dCp / sc, z = dHp / sh;
+        return (float) Math.sqrt(x * x + y * y + z * z + rt * y * z);
+    }
+
+    private static double hueDegrees(double b, double a) {
+        if (a == 0 && b == 0) return 0;
+        double h = Math.toDegrees(Math.atan2(b, a));
+        return h < 0 ? h + 360 : h;
+    }
+
+    private static float f(float t) {
+        return t > EPSILON ? cbrt(t) : (KAPPA * t + 16f) / 116f;
+    }
+
+    /** Cube root for t in (0, 1]: exponent-division estimate plus two Newton steps. */
+    static float cbrt(float t) {
+        float y = Float.intBitsToFloat(Float.floatToRawIntBits(t) / 3 + 709921077);
+        y -= (y * y * y - t) / (3f * y * y);
+        y -= (y * y * y - t) / (3f * y * y);
+        return y;
+    }
+}
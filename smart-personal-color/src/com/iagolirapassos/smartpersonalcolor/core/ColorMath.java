@@ -0,0 +1,92 @@
+package com.iagolirapassos.smartpersonalcolor.core;
+
+/**
+ * Color conversions used by the engine.
+ *
+ * The HSV conversions are ports of Skia's SkRGBToHSV / SkHSVToColor, the
+ * code behind android.graphics.Color, so results match the platform bit
+ * for bit on any JVM.
+ */
+public final class ColorMath {
+
+    // SK_ScalarNearlyZero, Skia's default tolerance for "is zero"
+    private static final float NEARLY_ZERO = 1f / (1 << 12);
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private ColorMath() {
+    }
+
+    public static float[] rgbToHsv(int r, int g, int b) {
+        float[] hsv = new float[3];
+        rgbToHsv(r, g, b, hsv);
+        return hsv;
+    }
+
+    /** Same math as Color.RGBToHSV without the JNI crossing. */
+    public static void rgbToHsv(int r, int g, int b, float[] hsv) {
+        int max = Math.max(r, Math.max(g, b));
+        int min = Math.min(r, Math.min(g, b));
+        int delta = max - min;
+        hsv[2] = max / 255f;
+        if (delta == 0) {
+            hsv[0] = 0f;
+            hsv[1] = 0f;
+            return;
+        }
+        float h;
+        if (r == max) {
+            h = (g - b) / (float) delta;
+        } else if (g == max) {
+            h = 2f + (b - r) / (float) delta;
+        } else {
+            h = 4f + (r - g) / (float) delta;
+        }
+        h *= 60f;
+        if (h < 0f) h += 360f;
+        hsv[0] = h;
+        hsv[1] = delta / (float) max;
+    }
+
+    /** Same math as Color.HSVToColor: opaque ARGB for h in degrees, s and v in [0, 1]. */
+    public static int hsvToColor(float h, float s, float v) {
+        s = Math.max(0f, Math.min(1f, s));
+        v = Math.max(0f, Math.min(1f, v));
+        int vb = round(v * 255);
+        // SkScalarNearlyZero: saturations up to 1/4096 are gray
+        if (s <= NEARLY_ZERO) return 0xFF000000 | vb << 16 | vb << 8 | vb;
+
+        float hx = (h < 0f || h >= 360f) ? 0f : h / 60f;
+        float w = (float) Math.floor(hx);
+        float f = hx - w;
+        int p = round((1f - s) * v * 255);
+        int q = round((1f - (s * f)) * v * 255);
+        int t = round((1f - (s * (1f - f))) * v * 255);
+
+        int r, g, b;
+        switch ((int) w) {
+            case 0: r = vb; g = t; b = p; break;
+            case 1: r = q; g = vb; b = p; break;
+            case 2: r = p; g = vb; b = t; break;
+            case 3: r = p; g = q; b = vb; break;
+            case 4: r = t; g = p; b = vb; break;
+            default: r = vb; g = p; b = q; break;
+        }
+        return 0xFF000000 | r << 16 | g << 8 | b;
+    }
+
+    /** "#RRGGBB" in upper case for the low 24 bits of color, without String.format. */
+    public static String toHex(int color) {
+        char[] c = new char[7];
+        c[0] = '#';
+        for (int i = 6; i > 0; i--) {
+            c[i] = HEX_DIGITS[color & 0xF];
+            color >>= 4;
+        }
+        return new String(c);
+    }
+
+    private static int round(float x) {
+        return (int) Math.floor(x + 0.5f);
+    }
+}
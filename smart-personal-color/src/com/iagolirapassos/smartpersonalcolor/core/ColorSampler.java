@@ -0,0 +1,167 @@
+package com.iagolirapassos.smartpersonalcolor.core;
+
+import java.util.Arrays;
+
+/**
+ * Color sampling over row-major ARGB frames. stride is the frame width and
+ * every region is in frame coordinates.
+ */
+public final class ColorSampler {
+
+    private ColorSampler() {
+    }
+
+    /** Histogram size sampleSkin needs: 16 levels per channel. */
+    public static final int SKIN_HISTOGRAM_BINS = 16 * 16 * 16;
+
+    /** Grid points per skin estimate; the grid step grows with the face so the cost stays flat. */
+    private static final int SKIN_SAMPLES = 1024;
+
+    /**
+     * Robust skin color of the central half of the face, written to rgb.
+     * Returns the confidence in [0, 1].
+     *
+     * Every skin-toned pixel on a regular grid over the region goes into a
+     * 16 x 16 x 16 color histogram (histogram needs SKIN_HISTOGRAM_BINS
+     * entries and is cleared here). The estimate is the mean of the pixels
+     * in the fullest bin and its 26 neighbours, which leaves out highlights,
+     * shadows, lips and stray hair. The confidence is the share of grid
+     * points that landed there; below 0.1 the plain face average is used.
+     */
+    public static float sampleSkin(int[] pixels, int stride, Region face, int[] histogram, int[] rgb) {
+        int W = face.width(), H = face.height();
+        int sl = face.left + W / 4, st = face.top + H / 4;
+        int sr = face.left + W * 3 / 4, sb = face.top + H * 3 / 4;
+
+        if (sr <= sl || sb <= st) {
+            System.arraycopy(averageColor(pixels, stride, face), 0, rgb, 0, 3);
+            return 0f;
+        }
+
+        int step = Math.max(1, (int) Math.ceil(Math.sqrt((sr - sl) * (double) (sb - st) / SKIN_SAMPLES)));
+        float confidence = skinMode(pixels, stride, sl, st, sr, sb, step, histogram, rgb);
+        if (confidence < 0.1f) System.arraycopy(averageColor(pixels, stride, face), 0, rgb, 0, 3);
+        return confidence;
+    }
+
+    /**
+     * The histogram estimate of sampleSkin over the grid of every step-th
+     * pixel of [left, right) x [top, bottom). Writes the skin color to rgb
+     * and returns the share of grid points behind it; below 0.1, and for an
+     * empty window, rgb is left untouched and the caller falls back to the
+     * plain average.
+     */
+    static float skinMode(int[] pixels, int stride, int left, int top, int right, int bottom, int step,
+                          int[] histogram, int[] rgb) {
+        Arrays.fill(histogram, 0, SKIN_HISTOGRAM_BINS, 0);
+        int total = 0, mode = -1, modeCount = 0;
+
+        for (int y = top; y < bottom; y += step) {
+            int row = y * stride;
+            for (int x = left; x < right; x += step) {
+                total++;
+                int px = pixels[row + x];
+                int r = (px >> 16) & 0xFF, g = (px >> 8) & 0xFF, b = px & 0xFF;
+                if (!isSkinTone(r, g, b)) continue;
+
+                int bin = (r >> 4) << 8 | (g >> 4) << 4 | b >> 4;
+                int count = ++histogram[bin];
+                if (count > modeCount) {
+                    modeCount = count;
+                    mode = bin;
+                }
+            }
+        }
+
+        // A window narrower than one pixel (a face box 1 pixel wide) has no grid point
+        if (total == 0) return 0f;
+
+        int n = 0;
+        long sumR = 0, sumG = 0, sumB = 0;
+        if (mode >= 0) {
+            int mr = mode >> 8, mg = (mode >> 4) & 15, mb = mode & 15;
+            for (int y = top; y < bottom; y += step) {
+                int row = y * stride;
+                for (int x = left; x < right; x += step) {
+                    int px = pixels[row + x];
+                    int r = (px >> 16) & 0xFF, g = (px >> 8) & 0xFF, b = px & 0xFF;
+                    if (Math.abs((r >> 4) - mr) > 1 || Math.abs((g >> 4) - mg) > 1
+                            || Math.abs((b >> 4) - mb) > 1 || !isSkinTone(r, g, b)) continue;
+                    sumR += r; sumG += g; sumB += b;
+                    n++;
+                }
+            }
+        }
+
+        if (n * 10 < total) return n / (float) total;
+
+        rgb[0] = (int) (sumR / n);
+        rgb[1] = (int) (sumG / n);
+        rgb[2] = (int) (sumB / n);
+        return n / (float) total;
+    }
+
+    /** Average of every fifth pixel on every fifth row of the region. */
+    public static int[] averageColor(int[] pixels, int stride, Region region) {
+        long sumR = 0, sumG = 0, sumB = 0;
+        int cnt = 0;
+        for (int y = region.top; y < region.bottom; y += 5) {
+            int row = y * stride;
+            for (int x = region.left; x < region.right; x += 5) {
+                int px = pixels[row + x];
+                sumR += (px >> 16) & 0xFF;
+                sumG += (px >> 8) & 0xFF;
+                sumB += px & 0xFF;
+                cnt++;
+            }
+        }
+        if (cnt == 0) return new int[]{210, 180, 160};
+        return new int[]{(int) (sumR / cnt), (int) (sumG / cnt), (int) (sumB / cnt)};
+    }
+
+    /**
+     * Whether a pixel is skin-toned: hue 340..50, saturation 0.12..0.78 and
+     * value 0.18..0.96, in integers. The hue range needs red as the largest
+     * channel, then saturation and value are checked on max and max - min.
+     */
+    public static boolean isSkinTone(int r, int g, int b) {
+        int max = Math.max(r, Math.max(g, b));
+        if (r != max || max < 46 || max > 244) return false;
+        int delta = max - Math.min(g, b);
+        if (delta * 100 < max * 12 || delta * 100 > max * 78) return false;
+        return g >= b ? 6 * (g - b) <= 5 * delta : 3 * (b - g) <= delta;
+    }
+
+    /**
+     * Average of every third pixel on every third row of a width x height
+     * window starting at (startX, startY), clipped to bounds.
+     */
+    public static int[] sampleRegionColor(int[] pixels, int stride, Region bounds,
+                                          int startX, int startY, int width, int height) {
+        int endX = Math.min(startX + width, bounds.right);
+        int endY = Math.min(startY + height, bounds.bottom);
+        
+        long sumR = 0, sumG = 0, sumB = 0;
+        int count = 0;
+        
+        // Row-major walk over the bulk buffer
+        for (int y = startY; y < endY; y += 3) {
+            int row = y * stride;
+            for (int x = startX; x < endX; x += 3) {
+                int pixel = pixels[row + x];
+                sumR += (pixel >> 16) & 0xFF;
+                sumG += (pixel >> 8) & 0xFF;
+                sumB += pixel & 0xFF;
+                count++;
+            }
+        }
+        
+        if (count == 0) return new int[]{128, 128, 128};
+        
+        return new int[]{
+            (int) (sumR / count),
+            (int) (sumG / count),
+            (int) (sumB / count)
+        };
+    }
+}
@@ -0,0 +1,335 @@
+package com.iagolirapassos.smartpersonalcolor.core;
+
+import java.util.Arrays;
+
+/**
+ * SEGMENTAÇÃO DO ROSTO: labels skin, eyes and hair of a face box once for
+ * every consumer downstream.
+ *
+ * The box is read on a grid of about CELLS points (one pixel per cell, the
+ * cell size grows with the face so the cost stays flat) and converted to
+ * CIELAB once. On that grid:
+ * <ul>
+ *   <li>skin color is the histogram estimate of ColorSampler.sampleSkin over
+ *       the central half, and skin cells are grown from the center through
+ *       4-connected skin-toned cells close to it in Lab;</li>
+ *   <li>eye cells are the non-skin cells of the eye band that are clearly
+ *       darker than the skin;</li>
+ *   <li>hair cells come from the non-skin cells of the top and sides, split
+ *       in two by k-means in Lab; the cluster that borders the skin more is
+ *       hair, the other background.</li>
+ * </ul>
+ * When too few cells end up as eyes or hair, their colors fall back to the
+ * fixed proportions of the face box used before segmentation. Matting
+ * treats skin cells surrounded by skin as certain skin.
+ *
+ * The three steps are separate calls, so a caller pays only for what it
+ * reads: sampleSkin for the skin color, then labelSkin for the skin cells
+ * matting uses, then labelFeatures for the eye and hair colors. segment
+ * runs the first two.
+ *
+ * An instance keeps its buffers between faces; get one from
+ * Workspace.segmentation() and use it from one thread at a time.
+ */
+public final class FaceSegmentation {
+
+    public static final byte OTHER = 0;
+    public static final byte SKIN = 1;
+    public static final byte EYE = 2;
+    public static final byte HAIR = 3;
+
+    /** Grid points per face box. */
+    public static final int CELLS = 4096;
+
+    // Largest Lab distance from the skin color for a cell to join the skin, with L counted at half weight
+    private static final float SKIN_DISTANCE = 14f;
+    // How much darker than the skin an eye cell must be: 15 L*, or a quarter of the skin's L* on dark skin
+    private static final float EYE_DARKER = 15f;
+    private static final float EYE_DARKER_SHARE = 0.25f;
+    private static final int MIN_EYE_CELLS = 2;
+    private static final int MIN_HAIR_CELLS = 4;
+    private static final int KMEANS_ITERATIONS = 4;
+
+    // Where eyes and hair are looked for, as fractions of the box (Region.face puts the eyes at 0.42)
+    private static final float EYE_TOP = 0.36f, EYE_BOTTOM = 0.50f, EYE_SIDE = 0.15f;
+    private static final float HAIR_TOP_BAND = 0.35f, HAIR_SIDE = 0.15f, HAIR_BOTTOM = 0.60f;
+
+    // Grid: cell (c, r) holds the pixel at the center of [c * step, (c + 1) * step) x [r * step, (r + 1) * step)
+    int step, cols, rows;
+
+    private int[] colors = new int[0];
+    private float[] l = new float[0], a = new float[0], b = new float[0];
+    private byte[] labels = new byte[0];
+    byte[] solid = new byte[0];
+    private int[] queue = new int[0];
+
+    private final int[] skin = new int[3];
+    private final int[] eye = new int[3];
+    private final int[] hair = new int[3];
+    private float skinConfidence;
+    // Lab of the skin color, null until labelSkin and when there is too little skin to label
+    private float[] skinLab;
+
+    /** Skin color and skin cells of a face box; sampleSkin followed by labelSkin. */
+    public void segment(int[] pixels, int stride, Region face, int[] histogram) {
+        sampleSkin(pixels, stride, face, histogram);
+        labelSkin();
+    }
+
+    /**
+     * Reads the grid of the face box of a frame whose width is stride and
+     * estimates the skin color. histogram needs SKIN_HISTOGRAM_BINS entries.
+     * Clears every label.
+     */
+    public void sampleSkin(int[] pixels, int stride, Region face, int[] histogram) {
+        int left = face.left, top = face.top, width = face.width(), height = face.height();
+        step = Math.max(1, (int) Math.ceil(Math.sqrt(width * (double) height / CELLS)));
+        cols = (width + step - 1) / step;
+        rows = (height + step - 1) / step;
+        int n = cols * rows;
+        ensure(n);
+
+        for (int r = 0, i = 0; r < rows; r++) {
+            int y = Math.min(top + r * step + step / 2, face.bottom - 1);
+            int row = y * stride;
+            for (int c = 0; c < cols; c++, i++) {
+                colors[i] = pixels[row + Math.min(left + c * step + step / 2, face.right - 1)];
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            labels[i] = OTHER;
+            solid[i] = 0;
+        }
+
+        skinLab = null;
+        skinConfidence = ColorSampler.skinMode(colors, cols, cols / 4, rows / 4, cols * 3 / 4, rows * 3 / 4, 1,
+                histogram, skin);
+        if (skinConfidence < 0.1f) {
+            // Too little skin to segment: plain average, and later the fixed proportions
+            System.arraycopy(ColorSampler.averageColor(pixels, stride, face), 0, skin, 0, 3);
+        }
+    }
+
+    /** Converts the grid to Lab and grows the skin cells; call after sampleSkin. */
+    public void labelSkin() {
+        if (skinConfidence < 0.1f) return;
+        CieLab.toLab(colors, 0, cols * rows, l, a, b);
+        skinLab = CieLab.rgbToLab(skin[0], skin[1], skin[2]);
+        growSkin(skinLab);
+    }
+
+    /**
+     * Labels eyes and hair and sets their colors; call after labelSkin on
+     * the same face box.
+     */
+    public void labelFeatures(int[] pixels, int stride, Region face) {
+        if (skinLab == null || !findEyes(skinLab[0])) fixedEyeColor(pixels, stride, face);
+        if (skinLab == null || !findHair()) fixedHairColor(pixels, stride, face);
+    }
+
+    /** Skin color; shared buffer, copy it to keep it. */
+    public int[] skinColor() {
+        return skin;
+    }
+
+    /** Share of the central grid points behind the skin color, in [0, 1]. */
+    public float skinConfidence() {
+        return skinConfidence;
+    }
+
+    public int[] eyeColor() {
+        return eye;
+    }
+
+    public int[] hairColor() {
+        return hair;
+    }
+
+    /** Region-grows skin from the central cells through cells near skinLab. */
+    private void growSkin(float[] skinLab) {
+        float limit = SKIN_DISTANCE * SKIN_DISTANCE;
+        int head = 0, tail = 0;
+        for (int r = rows / 4; r < rows * 3 / 4; r++) {
+            for (int c = cols / 4; c < cols * 3 / 4; c++) {
+                int i = r * cols + c;
+                if (skinLike(i, skinLab, limit)) {
+                    labels[i] = SKIN;
+                    queue[tail++] = i;
+                }
+            }
+        }
+        while (head < tail) {
+            int i = queue[head++];
+            int c = i % cols;
+            if (c > 0) tail = visit(i - 1, tail, skinLab, limit);
+            if (c < cols - 1) tail = visit(i + 1, tail, skinLab, limit);
+            if (i >= cols) tail = visit(i - cols, tail, skinLab, limit);
+            if (i + cols < cols * rows) tail = visit(i + cols, tail, skinLab, limit);
+        }
+
+        // Skin cells whose four neighbours are skin too: no face edge runs through them
+        for (int r = 1; r < rows - 1; r++) {
+            for (int c = 1, i = r * cols + 1; c < cols - 1; c++, i++) {
+                if (labels[i] == SKIN && labels[i - 1] == SKIN && labels[i + 1] == SKIN
+                        && labels[i - cols] == SKIN && labels[i + cols] == SKIN) {
+                    solid[i] = 1;
+                }
+            }
+        }
+    }
+
+    private int visit(int i, int tail, float[] skinLab, float limit) {
+        if (labels[i] != OTHER || !skinLike(i, skinLab, limit)) return tail;
+        labels[i] = SKIN;
+        queue[tail] = i;
+        return tail + 1;
+    }
+
+    /** Skin-toned and, with L* at half weight, within SKIN_DISTANCE of the skin color. */
+    private boolean skinLike(int i, float[] skinLab, float limit) {
+        int px = colors[i];
+        if (!ColorSampler.isSkinTone((px >> 16) & 0xFF, (px >> 8) & 0xFF, px & 0xFF)) return false;
+        float dl = (l[i] - skinLab[0]) * 0.5f, da = a[i] - skinLab[1], db = b[i] - skinLab[2];
+        return dl * dl + da * da + db * db <= limit;
+    }
+
+    /** Non-skin cells of the eye band darker than the skin; their mean is the eye color. */
+    private boolean findEyes(float skinL) {
+        int r0 = (int) (rows * EYE_TOP), r1 = (int) Math.ceil(rows * EYE_BOTTOM);
+        int c0 = (int) (cols * EYE_SIDE), c1 = cols - c0;
+        float maxL = skinL - Math.min(EYE_DARKER, skinL * EYE_DARKER_SHARE);
+        int count = 0;
+        long sumR = 0, sumG = 0, sumB = 0;
+        for (int r = r0; r < r1; r++) {
+            for (int c = c0, i = r * cols + c0; c < c1; c++, i++) {
+                if (labels[i] != OTHER || l[i] > maxL) continue;
+                labels[i] = EYE;
+                int px = colors[i];
+                sumR += (px >> 16) & 0xFF;
+                sumG += (px >> 8) & 0xFF;
+                sumB += px & 0xFF;
+                count++;
+            }
+        }
+        if (count < MIN_EYE_CELLS) {
+            for (int i = r0 * cols; i < r1 * cols; i++) if (labels[i] == EYE) labels[i] = OTHER;
+            return false;
+        }
+        eye[0] = (int) (sumR / count);
+        eye[1] = (int) (sumG / count);
+        eye[2] = (int) (sumB / count);
+        return true;
+    }
+
+    /**
+     * Two-means over the unlabeled cells of the top band and the sides,
+     * started from the darkest and the lightest of them. The cluster with
+     * more cells next to skin is hair.
+     */
+    private boolean findHair() {
+        int r1 = (int) Math.ceil(rows * HAIR_BOTTOM);
+        int topBand = (int) Math.ceil(rows * HAIR_TOP_BAND);
+        int side = (int) Math.ceil(cols * HAIR_SIDE);
+
+        // Candidates go to the queue; the darkest and lightest seed the two means
+        int n = 0, dark = -1, light = -1;
+        for (int r = 0; r < r1; r++) {
+            for (int c = 0, i = r * cols; c < cols; c++, i++) {
+                if (labels[i] != OTHER || (r >= topBand && c >= side && c < cols - side)) continue;
+                queue[n++] = i;
+                if (dark < 0 || l[i] < l[dark]) dark = i;
+                if (light < 0 || l[i] > l[light]) light = i;
+            }
+        }
+        if (n < MIN_HAIR_CELLS) return false;
+
+        float[] m = {l[dark], a[dark], b[dark], l[light], a[light], b[light]};
+        float[] sum = new float[8];
+        for (int iter = 0; iter < KMEANS_ITERATIONS; iter++) {
+            Arrays.fill(sum, 0f);
+            for (int k = 0; k < n; k++) {
+                int i = queue[k];
+                int j = nearer(i, m) * 4;
+                sum[j] += l[i];
+                sum[j + 1] += a[i];
+                sum[j + 2] += b[i];
+                sum[j + 3]++;
+            }
+            for (int j = 0; j < 2; j++) {
+                float count = sum[j * 4 + 3];
+                if (count == 0f) continue;
+                m[j * 3] = sum[j * 4] / count;
+                m[j * 3 + 1] = sum[j * 4 + 1] / count;
+                m[j * 3 + 2] = sum[j * 4 + 2] / count;
+            }
+        }
+
+        int[] touching = new int[2];
+        for (int k = 0; k < n; k++) {
+            int i = queue[k];
+            if (nextToSkin(i)) touching[nearer(i, m)]++;
+        }
+        // Ties go to the darker cluster, the one seeded from the darkest cell
+        int hairCluster = touching[1] > touching[0] ? 1 : 0;
+
+        int count = 0;
+        long sumR = 0, sumG = 0, sumB = 0;
+        for (int k = 0; k < n; k++) {
+            int i = queue[k];
+            if (nearer(i, m) != hairCluster) continue;
+            labels[i] = HAIR;
+            int px = colors[i];
+            sumR += (px >> 16) & 0xFF;
+            sumG += (px >> 8) & 0xFF;
+            sumB += px & 0xFF;
+            count++;
+        }
+        if (count < MIN_HAIR_CELLS) {
+            for (int k = 0; k < n; k++) if (labels[queue[k]] == HAIR) labels[queue[k]] = OTHER;
+            return false;
+        }
+        hair[0] = (int) (sumR / count);
+        hair[1] = (int) (sumG / count);
+        hair[2] = (int) (sumB / count);
+        return true;
+    }
+
+    private int nearer(int i, float[] m) {
+        float d0l = l[i] - m[0], d0a = a[i] - m[1], d0b = b[i] - m[2];
+        float d1l = l[i] - m[3], d1a = a[i] - m[4], d1b = b[i] - m[5];
+        return d1l * d1l + d1a * d1a + d1b * d1b < d0l * d0l + d0a * d0a + d0b * d0b ? 1 : 0;
+    }
+
+    private boolean nextToSkin(int i) {
+        int c = i % cols;
+        return (c > 0 && labels[i - 1] == SKIN)
+                || (c < cols - 1 && labels[i + 1] == SKIN)
+                || (i >= cols && labels[i - cols] == SKIN)
+                || (i + cols < cols * rows && labels[i + cols] == SKIN);
+    }
+
+    // Fixed proportions of the face box: eyes in the central third from 30% down, hair from 10% to 30%
+    private void fixedEyeColor(int[] pixels, int stride, Region face) {
+        int w = face.width(), h = face.height();
+        System.arraycopy(ColorSampler.sampleRegionColor(pixels, stride, face,
+                face.left + w / 3, face.top + (int) (h * 0.3), w / 3, (int) (h * 0.25)), 0, eye, 0, 3);
+    }
+
+    private void fixedHairColor(int[] pixels, int stride, Region face) {
+        int w = face.width(), h = face.height();
+        System.arraycopy(ColorSampler.sampleRegionColor(pixels, stride, face,
+                face.left, face.top + (int) (h * 0.1), w, (int) (h * 0.2)), 0, hair, 0, 3);
+    }
+
+    private void ensure(int n) {
+        if (colors.length < n) {
+            colors = new int[n];
+            l = new float[n];
+            a = new float[n];
+            b = new float[n];
+            labels = new byte[n];
+            solid = new byte[n];
+            queue = new int[n];
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.iagolirapassos.smartpersonalcolor.core;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ANÁLISE AVANÇADA DE CARACTERÍSTICAS FACIAIS: contrast level, intensity,
+ * chroma and lightness that feed the season classifier, all measured in
+ * CIELAB so they hold up on darker skin.
+ */
+public final class FeatureAnalyzer {
+
+    // Mean CIEDE2000 between skin, eyes and hair for Alto and Médio contrast
+    private static final float HIGH_CONTRAST = 30f;
+    private static final float MEDIUM_CONTRAST = 20f;
+    // Mean C*ab of skin, eyes and hair (or of the skin alone) above which coloring reads as Brilhante
+    private static final float BRIGHT_CHROMA = 30f;
+    private static final float BRIGHT_SKIN_CHROMA = 22f;
+
+    private FeatureAnalyzer() {
+    }
+
+    /**
+     * Contrast and intensity from the skin, eye and hair colors of a face,
+     * as FaceSegmentation finds them.
+     */
+    public static Map<String, Object> analyzeFaceFeatures(int[] skinColor, int[] eyeColor, int[] hairColor) {
+        Map<String, Object> features = new HashMap<>();
+
+        // Contraste perceptual (CIEDE2000) entre pele, olhos e cabelo
+        float[] skinLab = CieLab.rgbToLab(skinColor[0], skinColor[1], skinColor[2]);
+        float[] eyeLab = CieLab.rgbToLab(eyeColor[0], eyeColor[1], eyeColor[2]);
+        float[] hairLab = CieLab.rgbToLab(hairColor[0], hairColor[1], hairColor[2]);
+
+        float skinEyeContrast = CieLab.deltaE2000(skinLab, eyeLab);
+        float skinHairContrast = CieLab.deltaE2000(skinLab, hairLab);
+        float eyeHairContrast = CieLab.deltaE2000(eyeLab, hairLab);
+
+        float avgContrast = (skinEyeContrast + skinHairContrast + eyeHairContrast) / 3;
+
+        // Determinar nível de contraste
+        String contrastLevel;
+        if (avgContrast > HIGH_CONTRAST) {
+            contrastLevel = "Alto";
+        } else if (avgContrast > MEDIUM_CONTRAST) {
+            contrastLevel = "Médio";
+        } else {
+            contrastLevel = "Baixo";
+        }
+
+        // Intensidade: Brilhante (cores com croma alto) vs Suave
+        float avgChroma = (CieLab.chroma(skinLab) + CieLab.chroma(eyeLab) + CieLab.chroma(hairLab)) / 3;
+        float avgLightness = (skinLab[0] + eyeLab[0] + hairLab[0]) / 3;
+        String intensity = avgChroma > BRIGHT_CHROMA ? "Brilhante" : "Suave";
+
+        features.put("contrast", contrastLevel);
+        features.put("contrastValue", avgContrast);
+        features.put("intensity", intensity);
+        features.put("intensityValue", intensityLevel(avgChroma, BRIGHT_CHROMA));
+        features.put("eyeColor", eyeColor.clone());
+        features.put("hairColor", hairColor.clone());
+        features.put("chroma", avgChroma);
+        features.put("lightness", avgLightness);
+        
+        return features;
+    }
+
+    /** Estimate from the skin color alone, used when there is no face box. */
+    public static Map<String, Object> analyzeBasicFeatures(int[] skinColor) {
+        Map<String, Object> features = new HashMap<>();
+        
+        float[] lab = CieLab.rgbToLab(skinColor[0], skinColor[1], skinColor[2]);
+        float chroma = CieLab.chroma(lab);
+        
+        features.put("contrast", "Médio");
+        features.put("intensity", chroma > BRIGHT_SKIN_CHROMA ? "Brilhante" : "Suave");
+        features.put("intensityValue", intensityLevel(chroma, BRIGHT_SKIN_CHROMA));
+        features.put("chroma", chroma);
+        features.put("lightness", lab[0]);
+        
+        return features;
+    }
+
+    /** Chroma on the season model's intensity scale: 0 for grey, 0.5 at the Brilhante threshold, at most 1. */
+    private static float intensityLevel(float chroma, float brightChroma) {
+        return Math.min(1f, chroma / brightChroma * 0.5f);
+    }
+}
@@ -0,0 +1,142 @@
+package com.iagolirapassos.smartpersonalcolor.core;
+
+/**
+ * Converts raw camera frames into the engine's row-major ARGB layout.
+ *
+ * Every conversion downsamples by an integer step (nearest sample, so each
+ * output pixel reads exactly one source pixel), optionally rotates by a
+ * multiple of 90 degrees clockwise, and writes into a caller-owned buffer,
+ * so a stream of frames allocates no pixel storage. The output width is
+ * rounded down to an even number, as FaceDetector requires.
+ */
+public final class FrameConverter {
+
+    // BT.601 limited-range coefficients in Q10
+    private static final int Y_SCALE = 1192;
+    private static final int V_TO_R = 1634;
+    private static final int V_TO_G = 833;
+    private static final int U_TO_G = 400;
+    private static final int U_TO_B = 2066;
+    private static final int MAX_Q10 = (255 << 10) | 1023;
+
+    private FrameConverter() {
+    }
+
+    /** Largest step that keeps the output width (after rotation) at or above targetWidth. */
+    public static int stepFor(int width, int height, int rotation, int targetWidth) {
+        int w = rotation == 90 || rotation == 270 ? height : width;
+        return Math.max(1, w / Math.max(1, targetWidth));
+    }
+
+    public static int outputWidth(int width, int height, int step, int rotation) {
+        int w = (rotation == 90 || rotation == 270 ? height : width) / step;
+        return w & ~1;
+    }
+
+    public static int outputHeight(int width, int height, int step, int rotation) {
+        return (rotation == 90 || rotation == 270 ? width : height) / step;
+    }
+
+    /** NV21 (Y plane, then interleaved V/U at half resolution) to ARGB with integer math. */
+    public static void nv21ToArgb(byte[] nv21, int width, int height, int step, int rotation, int[] out) {
+        checkLength(nv21.length, width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2));
+        int[] walk = new int[4];
+        int outW = outputWidth(width, height, step, rotation);
+        int outH = outputHeight(width, height, step, rotation);
+        int chroma = width * height;
+        // A chroma row holds one V/U pair per two pixels, rounded up for odd widths
+        int chromaStride = (width + 1) & ~1;
+
+        for (int oy = 0, o = 0; oy < outH; oy++) {
+            start(width, height, step, rotation, oy, walk);
+            int sx = walk[0], sy = walk[1];
+            int dx = walk[2], dy = walk[3];
+            for (int ox = 0; ox < outW; ox++, o++, sx += dx, sy += dy) {
+                int y = (nv21[sy * width + sx] & 0xFF) - 16;
+                int vu = chroma + (sy >> 1) * chromaStride + (sx & ~1);
+                int v = (nv21[vu] & 0xFF) - 128;
+                int u = (nv21[vu + 1] & 0xFF) - 128;
+
+                int yy = Y_SCALE * (y < 0 ? 0 : y) + 512;
+                int r = yy + V_TO_R * v;
+                int g = yy - V_TO_G * v - U_TO_G * u;
+                int b = yy + U_TO_B * u;
+
+                r = r < 0 ? 0 : r > MAX_Q10 ? MAX_Q10 : r;
+                g = g < 0 ? 0 : g > MAX_Q10 ? MAX_Q10 : g;
+                b = b < 0 ? 0 : b > MAX_Q10 ? MAX_Q10 : b;
+
+                out[o] = 0xFF000000 | ((r << 6) & 0xFF0000) | ((g >> 2) & 0xFF00) | (b >> 10);
+            }
+        }
+    }
+
+    /** Packed ARGB ints (Bitmap.getPixels layout). */
+    public static void argbToArgb(int[] argb, int width, int height, int step, int rotation, int[] out) {
+        checkLength(argb.length, width * height);
+        int[] walk = new int[4];
+        int outW = outputWidth(width, height, step, rotation);
+        int outH = outputHeight(width, height, step, rotation);
+
+        for (int oy = 0, o = 0; oy < outH; oy++) {
+            start(width, height, step, rotation, oy, walk);
+            int sx = walk[0], sy = walk[1];
+            int dx = walk[2], dy = walk[3];
+            for (int ox = 0; ox < outW; ox++, o++, sx += dx, sy += dy) {
+                out[o] = argb[sy * width + sx] | 0xFF000000;
+            }
+        }
+    }
+
+    /**
+     * Four bytes per pixel, either A,R,G,B or R,G,B,A order (the latter is
+     * what Bitmap.copyPixelsToBuffer and RGBA_8888 image readers produce).
+     */
+    public static void bytesToArgb(byte[] px, boolean rgba, int width, int height, int step, int rotation,
+                                   int[] out) {
+        checkLength(px.length, width * height * 4);
+        int[] walk = new int[4];
+        int outW = outputWidth(width, height, step, rotation);
+        int outH = outputHeight(width, height, step, rotation);
+        int red = rgba ? 0 : 1;
+
+        for (int oy = 0, o = 0; oy < outH; oy++) {
+            start(width, height, step, rotation, oy, walk);
+            int sx = walk[0], sy = walk[1];
+            int dx = walk[2], dy = walk[3];
+            for (int ox = 0; ox < outW; ox++, o++, sx += dx, sy += dy) {
+                int i = (sy * width + sx) * 4 + red;
+                out[o] = 0xFF000000 | (px[i] & 0xFF) << 16 | (px[i + 1] & 0xFF) << 8 | (px[i + 2] & 0xFF);
+            }
+        }
+    }
+
+    /**
+     * Source position of the first pixel of output row oy and the source
+     * step per output column: { sx, sy, dx, dy }.
+     */
+    private static void start(int width, int height, int step, int rotation, int oy, int[] walk) {
+        int lastX = (width / step - 1) * step;
+        int lastY = (height / step - 1) * step;
+        switch (rotation) {
+            case 90:
+                walk[0] = oy * step; walk[1] = lastY; walk[2] = 0; walk[3] = -step;
+                break;
+            case 180:
+                walk[0] = lastX; walk[1] = lastY - oy * step; walk[2] = -step; walk[3] = 0;
+                break;
+            case 270:
+                walk[0] = lastX - oy * step; walk[1] = 0; walk[2] = 0; walk[3] = step;
+                break;
+            default:
+                walk[0] = 0; walk[1] = oy * step; walk[2] = step; walk[3] = 0;
+                break;
+        }
+    }
+
+    private static void checkLength(int actual, int expected) {
+        if (actual < expected) {
+            throw new IllegalArgumentException("Frame has " + actual + " elements, expected " + expected);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.iagolirapassos.smartpersonalcolor.core;
+
+import java.util.Arrays;
+
+/**
+ * A face crop kept for re-matting with different MattingParams.
+ *
+ * Holds a copy of the crop and its skin reference. The first refine also
+ * stores, per pixel, the squared hue, saturation and value distances from
+ * that reference (the part of the skin score that no parameter changes),
+ * so later refines skip the HSV conversion and only redo the Gaussians,
+ * the ellipse, the blur and the alpha curve. The planes take 12 bytes per
+ * pixel on top of the 4 of the crop. Cells a FaceSegmentation found to be
+ * solid skin get zero distances, as removeBackground scores them. A source
+ * may be shared between threads; BackgroundMatte.refine builds the planes
+ * once.
+ */
+public final class MatteSource {
+
+    final int width;
+    final int height;
+    final int[] pixels;
+    final float[] skinRef;
+    private final byte[] solid;
+    private final int cellStep, cellCols;
+
+    // Squared distances from skinRef, built on first use
+    private float[] hue2, sat2, val2;
+
+    /** Copies the crop out of a frame whose width is stride. */
+    public MatteSource(int[] frame, int stride, Region crop, float[] skinRef) {
+        this(frame, stride, crop, skinRef, null);
+    }
+
+    /**
+     * Copies the crop and the skin color and solid skin cells of its
+     * segmentation, which must have been made on the same crop.
+     */
+    public MatteSource(int[] frame, int stride, Region crop, FaceSegmentation segmentation) {
+        this(frame, stride, crop, ColorMath.rgbToHsv(segmentation.skinColor()[0], segmentation.skinColor()[1],
+                segmentation.skinColor()[2]), segmentation);
+    }
+
+    private MatteSource(int[] frame, int stride, Region crop, float[] skinRef, FaceSegmentation segmentation) {
+        this.width = crop.width();
+        this.height = crop.height();
+        this.pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(frame, (crop.top + y) * stride + crop.left, pixels, y * width, width);
+        }
+        this.skinRef = skinRef.clone();
+        if (segmentation != null) {
+            this.solid = Arrays.copyOf(segmentation.solid, segmentation.cols * segmentation.rows);
+            this.cellStep = segmentation.step;
+            this.cellCols = segmentation.cols;
+        } else {
+            this.solid = null;
+            this.cellStep = 1;
+            this.cellCols = 0;
+        }
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    /** Distance planes {hue², saturation², value²}, built on the first call. */
+    synchronized float[][] planes(boolean parallel) {
+        if (hue2 == null) {
+            final int n = width * height;
+            final float[] h2 = new float[n], s2 = new float[n], v2 = new float[n];
+            final float refH = skinRef[0], refS = skinRef[1], refV = skinRef[2];
+            Parallel.forRange(height, 32, parallel, new Parallel.Range() {
+                @Override
+                public void run(int from, int to) {
+                    float[] hsv = new float[3];
+                    for (int y = from; y < to; y++) {
+                        int cellRow = (y / cellStep) * cellCols;
+                        for (int x = 0, idx = y * width; x < width; x++, idx++) {
+                            // Solid skin keeps zero distances, a skin score of 1
+                            if (solid != null && solid[cellRow + x / cellStep] != 0) continue;
+                            int px = pixels[idx];
+                            ColorMath.rgbToHsv((px >> 16) & 0xFF, (px >> 8) & 0xFF, px & 0xFF, hsv);
+                            float dH = Math.abs(hsv[0] - refH);
+                            if (dH > 180f) dH = 360f - dH;
+                            float dS = hsv[1] - refS;
+                            float dV = hsv[2] - refV;
+                            h2[idx] = dH * dH;
+                            s2[idx] = dS * dS;
+                            v2[idx] = dV * dV;
+                        }
+                    }
+                }
+            });
+            hue2 = h2;
+            sat2 = s2;
+            val2 = v2;
+        }
+        return new float[][]{hue2, sat2, val2};
+    }
+}
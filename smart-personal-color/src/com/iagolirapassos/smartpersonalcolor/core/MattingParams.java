@@ -0,0 +1,63 @@
+package com.iagolirapassos.smartpersonalcolor.core;
+
+/**
+ * Tunable knobs of background removal.
+ *
+ * The three tolerances are the widths of the hue (degrees), saturation and
+ * value Gaussians of the skin score; inner and outer bound the transition
+ * band of the face ellipse (1 is the ellipse itself); blurRadius softens
+ * the matte edge. A tolerance or radius of 0 keeps the automatic value,
+ * derived from the skin reference or the crop size as before. A radius
+ * larger than the crop is clamped to it: the blur window already spans
+ * every row and column there, and the window arithmetic would overflow for
+ * radii near Integer.MAX_VALUE.
+ */
+public final class MattingParams {
+
+    public static final float DEFAULT_INNER = 0.70f;
+    public static final float DEFAULT_OUTER = 1.15f;
+
+    /** Automatic tolerances and radius, default ellipse band. */
+    public static final MattingParams DEFAULT =
+            new MattingParams(0f, 0f, 0f, DEFAULT_INNER, DEFAULT_OUTER, 0);
+
+    public final float hueTol;
+    public final float satTol;
+    public final float valTol;
+    public final float inner;
+    public final float outer;
+    public final int blurRadius;
+
+    /** Throws IllegalArgumentException for negative values or inner >= outer. */
+    public MattingParams(float hueTol, float satTol, float valTol, float inner, float outer, int blurRadius) {
+        if (!(hueTol >= 0f && satTol >= 0f && valTol >= 0f)) {
+            throw new IllegalArgumentException("tolerances must be 0 (automatic) or positive");
+        }
+        if (!(inner >= 0f && inner < outer)) {
+            throw new IllegalArgumentException("inner must be at least 0 and below outer");
+        }
+        if (blurRadius < 0) throw new IllegalArgumentException("blurRadius must be 0 (automatic) or positive");
+        this.hueTol = hueTol;
+        this.satTol = satTol;
+        this.valTol = valTol;
+        this.inner = inner;
+        this.outer = outer;
+        this.blurRadius = blurRadius;
+    }
+
+    float hueTol(float[] skinRef) {
+        return hueTol > 0f ? hueTol : 28f + skinRef[1] * 12f;
+    }
+
+    float satTol(float[] skinRef) {
+        return satTol > 0f ? satTol : 0.22f + skinRef[2] * 0.10f;
+    }
+
+    float valTol(float[] skinRef) {
+        return valTol > 0f ? valTol : 0.25f + (1f - skinRef[2]) * 0.10f;
+    }
+
+    int blurRadius(int w, int h) {
+        return blurRadius > 0 ? Math.min(blurRadius, Math.max(w, h)) : Math.max(2, Math.min(w, h) / 28);
+    }
+}
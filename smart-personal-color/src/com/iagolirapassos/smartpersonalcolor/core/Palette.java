@@ -0,0 +1,60 @@
+package com.iagolirapassos.smartpersonalcolor.core;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * One palette as the immutable list [name, hex1 .. hexN] the result map and
+ * the events use. Colors are stored packed as 0xRRGGBB; the hex strings are
+ * made on first read, or up front for the constant tables.
+ */
+public final class Palette extends AbstractList<String> implements RandomAccess {
+
+    private final String name;
+    private final int[] colors;
+    private final String[] hex;
+
+    Palette(String name, int... colors) {
+        this.name = name;
+        this.colors = new int[colors.length];
+        for (int i = 0; i < colors.length; i++) this.colors[i] = colors[i] & 0xFFFFFF;
+        this.hex = new String[colors.length];
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int colorCount() {
+        return colors.length;
+    }
+
+    /** Packed 0xRRGGBB value of color i (0-based, without the name). */
+    public int color(int i) {
+        return colors[i];
+    }
+
+    @Override
+    public String get(int index) {
+        if (index == 0) return name;
+        int i = index - 1;
+        String h = hex[i];
+        if (h == null) {
+            // Threads racing here store equal strings
+            h = ColorMath.toHex(colors[i]);
+            hex[i] = h;
+        }
+        return h;
+    }
+
+    @Override
+    public int size() {
+        return colors.length + 1;
+    }
+
+    /** Builds every hex string now; used for the shared constant tables. */
+    Palette withHex() {
+        for (int i = 0; i < colors.length; i++) get(i + 1);
+        return this;
+    }
+}
@@ -0,0 +1,151 @@
+package com.iagolirapassos.smartpersonalcolor.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * PALETTE GENERATION — 15 paletas personalizadas.
+ *
+ * The season, contrast and intensity palettes are constants built once and
+ * shared by every result; only the palettes around the skin color are made
+ * per call, as packed colors.
+ */
+public final class PaletteBuilder {
+
+    // Primavera - cores vibrantes e quentes
+    private static final Palette[] SPRING = {
+            fixed("Spring Vibrant", 0xFF6B6B, 0xFFB347, 0xFFD966, 0x98FB98, 0x87CEEB),
+            fixed("Spring Pastel", 0xFFB6C1, 0xFFDAB9, 0xFFFACD, 0xE6E6FA, 0xB0E0E6),
+            fixed("Spring Bright", 0xFF4500, 0xFF8C00, 0xFFD700, 0xADFF2F, 0x00CED1)
+    };
+
+    // Verão - cores suaves e frias
+    private static final Palette[] SUMMER = {
+            fixed("Summer Soft", 0xB0C4DE, 0xB0E0E6, 0xD8BFD8, 0xDDA0DD, 0xE6E6FA),
+            fixed("Summer Cool", 0x87CEEB, 0xADD8E6, 0xB0C4DE, 0xC6E2FF, 0xE0FFFF),
+            fixed("Summer Pastel", 0xFFB6C1, 0xFFC0CB, 0xFFDAB9, 0xE0FFFF, 0xF0FFF0)
+    };
+
+    // Outono - cores terrosas e quentes
+    private static final Palette[] AUTUMN = {
+            fixed("Autumn Earth", 0x8B4513, 0xA0522D, 0xCD853F, 0xD2B48C, 0xF4A460),
+            fixed("Autumn Warm", 0xB22222, 0xCD5C5C, 0xD2691E, 0xB8860B, 0x9ACD32),
+            fixed("Autumn Rich", 0x800000, 0x8B0000, 0xB8860B, 0x556B2F, 0x2E8B57)
+    };
+
+    // Inverno - cores intensas e frias
+    private static final Palette[] WINTER = {
+            fixed("Winter Cool", 0x4169E1, 0x0000CD, 0x00008B, 0x483D8B, 0x191970),
+            fixed("Winter Bright", 0xDC143C, 0xB22222, 0x8B0000, 0xFF1493, 0x9400D3),
+            fixed("Winter Jewel", 0x9932CC, 0x8A2BE2, 0x4B0082, 0x2E0854, 0x191970)
+    };
+
+    private static final Palette HIGH_CONTRAST =
+            fixed("High Contrast", 0x000000, 0xFFFFFF, 0xFF0000, 0x0000FF, 0xFFFF00);
+    private static final Palette MEDIUM_CONTRAST =
+            fixed("Medium Contrast", 0x696969, 0xD3D3D3, 0xB22222, 0x2E8B57, 0x1E90FF);
+    private static final Palette LOW_CONTRAST =
+            fixed("Low Contrast", 0xD3D3D3, 0xF5F5F5, 0xFFE4E1, 0xE6E6FA, 0xF0FFF0);
+    private static final Palette BRIGHT =
+            fixed("Bright Palette", 0xFF1493, 0xFF4500, 0xFFD700, 0x00FF00, 0x00BFFF);
+    private static final Palette SOFT =
+            fixed("Soft Palette", 0xFFB6C1, 0xFFDAB9, 0xE6E6FA, 0xB0E0E6, 0xD3D3D3);
+
+    private PaletteBuilder() {
+    }
+
+    /**
+     * Palettes, each a Palette list of [name, hex1 .. hex5]: three
+     * color-theory palettes around the skin hue, three for the season, one
+     * each for contrast and intensity, and a neutral scale.
+     */
+    public static List<Object> buildAllPalettes(int r, int g, int b, float[] hsv,
+                                                String season, String undertone,
+                                                String contrast, String intensity) {
+        float h = hsv[0];
+        float s = hsv[1];
+        float v = hsv[2];
+
+        List<Object> all = new ArrayList<>(12);
+
+        // Paleta 1-6: Teoria das Cores (baseada no tom de pele)
+        all.add(new Palette("Monochromatic",
+                hsvColor(h, clamp(s - 0.35f), clamp(v + 0.25f)),
+                hsvColor(h, clamp(s - 0.18f), clamp(v + 0.12f)),
+                hsvColor(h, s, v),
+                hsvColor(h, clamp(s + 0.18f), clamp(v - 0.12f)),
+                hsvColor(h, clamp(s + 0.30f), clamp(v - 0.22f))
+        ));
+
+        all.add(new Palette("Analogous",
+                hsvColor(rotH(h, -60), s, v),
+                hsvColor(rotH(h, -30), s, v),
+                hsvColor(h, s, v),
+                hsvColor(rotH(h, 30), s, v),
+                hsvColor(rotH(h, 60), s, v)
+        ));
+
+        float hC = rotH(h, 180);
+        all.add(new Palette("Complementary",
+                hsvColor(h, s, clamp(v + 0.10f)),
+                hsvColor(h, s, v),
+                hsvColor(h, clamp(s + 0.15f), clamp(v - 0.15f)),
+                hsvColor(hC, s, v),
+                hsvColor(hC, clamp(s - 0.15f), clamp(v + 0.10f))
+        ));
+
+        // Paletas 7-15: Baseadas na estação sazonal
+        if (season.contains("Spring")) {
+            Collections.addAll(all, SPRING);
+        } else if (season.contains("Summer")) {
+            Collections.addAll(all, SUMMER);
+        } else if (season.contains("Autumn")) {
+            Collections.addAll(all, AUTUMN);
+        } else if (season.contains("Winter")) {
+            Collections.addAll(all, WINTER);
+        }
+
+        // Paleta baseada no contraste
+        if (contrast.equals("Alto")) {
+            all.add(HIGH_CONTRAST);
+        } else if (contrast.equals("Médio")) {
+            all.add(MEDIUM_CONTRAST);
+        } else {
+            all.add(LOW_CONTRAST);
+        }
+
+        // Paleta baseada na intensidade
+        all.add(intensity.equals("Brilhante") ? BRIGHT : SOFT);
+
+        // Paleta neutra universal
+        all.add(new Palette("Neutral Harmony",
+                hsvColor(h, 0.04f, 0.96f),
+                hsvColor(h, 0.07f, 0.78f),
+                hsvColor(h, 0.09f, 0.56f),
+                hsvColor(h, 0.11f, 0.32f),
+                hsvColor(h, 0.13f, 0.12f)
+        ));
+
+        return all;
+    }
+
+    // ── Palette helpers ────────────────────────────────────────────────────────
+
+    private static Palette fixed(String name, int... colors) {
+        return new Palette(name, colors).withHex();
+    }
+
+    private static int hsvColor(float h, float s, float v) {
+        return ColorMath.hsvToColor(h, s, v);
+    }
+
+    private static float rotH(float h, float deg) {
+        float r = (h + deg) % 360f;
+        return r < 0f ? r + 360f : r;
+    }
+
+    private static float clamp(float val) {
+        return Math.max(0f, Math.min(1f, val));
+    }
+}
@@ -0,0 +1,108 @@
+package com.iagolirapassos.smartpersonalcolor.core;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Data-parallel loops for the pixel passes.
+ *
+ * A range is cut into contiguous bands; the calling thread runs the first
+ * band and a shared pool of (cores - 1) daemon threads runs the rest. Bands
+ * never overlap, so a pass produces exactly the same output as its serial
+ * form. Calls made from a pool thread run serially instead of waiting on
+ * the pool they occupy.
+ */
+public final class Parallel {
+
+    /** Body of a loop over [from, to). */
+    public interface Range {
+        void run(int from, int to);
+    }
+
+    private static final int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    private static final ThreadLocal<Boolean> IN_POOL = new ThreadLocal<>();
+
+    private static ThreadPoolExecutor pool;
+
+    private Parallel() {
+    }
+
+    /**
+     * Runs body over [0, n), split into bands of at least minBand items.
+     * With parallel false, or when the range is too small to split, this is
+     * a plain call to body.run(0, n).
+     */
+    public static void forRange(int n, int minBand, boolean parallel, final Range body) {
+        int bands = Math.min(THREADS + 1, n / Math.max(1, minBand));
+        if (!parallel || bands < 2 || IN_POOL.get() != null) {
+            body.run(0, n);
+            return;
+        }
+
+        final CountDownLatch done = new CountDownLatch(bands - 1);
+        final Throwable[] failure = new Throwable[1];
+        ThreadPoolExecutor executor = pool();
+
+        for (int i = 1; i < bands; i++) {
+            final int from = (int) ((long) n * i / bands);
+            final int to = (int) ((long) n * (i + 1) / bands);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        body.run(from, to);
+                    } catch (Throwable t) {
+                        synchronized (failure) {
+                            if (failure[0] == null) failure[0] = t;
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+
+        body.run(0, n / bands);
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for pixel bands", e);
+        }
+        synchronized (failure) {
+            if (failure[0] instanceof RuntimeException) throw (RuntimeException) failure[0];
+            if (failure[0] instanceof Error) throw (Error) failure[0];
+            if (failure[0] != null) throw new IllegalStateException(failure[0]);
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor pool() {
+        if (pool == null) {
+            pool = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            Thread t = new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    IN_POOL.set(Boolean.TRUE);
+                                    r.run();
+                                }
+                            }, "SmartPersonalColor-px-" + count.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            pool.allowCoreThreadTimeOut(true);
+        }
+        return pool;
+    }
+}
@@ -0,0 +1,125 @@
+package com.iagolirapassos.smartpersonalcolor.core;
+
+import java.util.Map;
+
+/**
+ * Platform-neutral personal color analysis over row-major ARGB frames.
+ *
+ * Decoding, face detection and image output are left to the caller (the
+ * App Inventor component, a JVM batch job, a test); the engine turns a frame
+ * and a face box into the result map and, optionally, the matted face.
+ * An engine holds only its options and may be shared between threads; each
+ * thread needs its own Workspace.
+ */
+public final class PersonalColorEngine {
+
+    /**
+     * Bumped whenever the same input can produce a different result, so
+     * stored results from an older engine are not reused.
+     */
+    public static final int VERSION = 6;
+
+    private boolean analyzeFeatures = true;
+    private boolean generatePalettes = true;
+    private boolean parallelMatting = true;
+    private boolean fixedPointBlur = true;
+    private SeasonModel seasonModel = SeasonModel.defaults();
+    private StageProbe probe = StageProbe.NONE;
+
+    /** Samples eye and hair color for contrast and intensity (default true). */
+    public PersonalColorEngine analyzeFeatures(boolean enabled) {
+        analyzeFeatures = enabled;
+        return this;
+    }
+
+    /** Builds the palette list (default true). */
+    public PersonalColorEngine generatePalettes(boolean enabled) {
+        generatePalettes = enabled;
+        return this;
+    }
+
+    /** Splits the matting passes across cores (default true). */
+    public PersonalColorEngine parallelMatting(boolean enabled) {
+        parallelMatting = enabled;
+        return this;
+    }
+
+    /** Uses the 8-bit fixed-point matte blur instead of the float one (default true). */
+    public PersonalColorEngine fixedPointBlur(boolean enabled) {
+        fixedPointBlur = enabled;
+        return this;
+    }
+
+    /** Season centroids and weights (default SeasonModel.defaults()). */
+    public PersonalColorEngine seasonModel(SeasonModel model) {
+        seasonModel = model != null ? model : SeasonModel.defaults();
+        return this;
+    }
+
+    /**
+     * Marks the end of the sample, features, matting and classify stages.
+     * Set it on an engine used by a single thread.
+     */
+    public PersonalColorEngine probe(StageProbe probe) {
+        this.probe = probe != null ? probe : StageProbe.NONE;
+        return this;
+    }
+
+    /**
+     * Analyzes the face inside a frame whose width is stride. When matte is
+     * not null it receives the face box with the background removed, as
+     * face.width() x face.height() ARGB. The box is segmented once (skin
+     * always, eyes and hair only with analyzeFeatures; ws.segmentation()
+     * holds the labels afterwards) and the sample, features and matting
+     * stages all read from that. Labeling counts as the features stage, so
+     * sample stays the skin color estimate alone.
+     */
+    public Map<String, Object> analyzeFace(int[] frame, int stride, Region face, Workspace ws, int[] matte) {
+        FaceSegmentation segmentation = ws.segmentation();
+        segmentation.sampleSkin(frame, stride, face, ws.histogram());
+        int[] skin = segmentation.skinColor().clone();
+        probe.lap("sample");
+
+        // Skin cells are only read by matting and by the eye and hair search
+        if (analyzeFeatures || matte != null) segmentation.labelSkin();
+        Map<String, Object> features;
+        if (analyzeFeatures) {
+            segmentation.labelFeatures(frame, stride, face);
+            features = FeatureAnalyzer.analyzeFaceFeatures(skin, segmentation.eyeColor(), segmentation.hairColor());
+        } else {
+            features = FeatureAnalyzer.analyzeBasicFeatures(skin);
+        }
+        probe.lap("features");
+
+        if (matte != null) {
+            BackgroundMatte.removeBackground(frame, stride, face, ColorMath.rgbToHsv(skin[0], skin[1], skin[2]),
+                    MattingParams.DEFAULT, segmentation, ws, matte, parallelMatting, fixedPointBlur);
+            probe.lap("matting");
+        }
+
+        Map<String, Object> result = SeasonClassifier.classify(skin, features, generatePalettes, seasonModel);
+        result.put("skinConfidence", (double) segmentation.skinConfidence());
+        if (analyzeFeatures) {
+            result.put("eyeColor", ColorMath.toHex(rgb(segmentation.eyeColor())));
+            result.put("hairColor", ColorMath.toHex(rgb(segmentation.hairColor())));
+        }
+        probe.lap("classify");
+        return result;
+    }
+
+    /** Analyzes a region without a detected face from its average color alone. */
+    public Map<String, Object> analyzeRegion(int[] frame, int stride, Region region) {
+        int[] color = ColorSampler.averageColor(frame, stride, region);
+        probe.lap("sample");
+        Map<String, Object> result =
+                SeasonClassifier.classify(color, FeatureAnalyzer.analyzeBasicFeatures(color), generatePalettes,
+                        seasonModel);
+        result.put("skinConfidence", 0.0);
+        probe.lap("classify");
+        return result;
+    }
+
+    private static int rgb(int[] c) {
+        return (c[0] << 16) | (c[1] << 8) | c[2];
+    }
+}
@@ -0,0 +1,64 @@
+package com.iagolirapassos.smartpersonalcolor.core;
+
+/**
+ * Axis-aligned pixel rectangle [left, right) x [top, bottom) inside a frame.
+ * Plays the role of android.graphics.Rect for the engine.
+ */
+public final class Region {
+
+    public final int left;
+    public final int top;
+    public final int right;
+    public final int bottom;
+
+    public Region(int left, int top, int right, int bottom) {
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+    }
+
+    public int width() {
+        return right - left;
+    }
+
+    public int height() {
+        return bottom - top;
+    }
+
+    /**
+     * Face box derived from a detected face: a 3.4 x 4.76 eye-distance box
+     * around the eye midpoint, or a 180 px square when that is too small.
+     */
+    public static Region face(float midX, float midY, float eyesDistance, int width, int height) {
+        float fw = eyesDistance * 3.4f;
+        float fh = fw * 1.4f;
+
+        int l = Math.max(0, (int) (midX - fw / 2));
+        int t = Math.max(0, (int) (midY - fh * 0.42f));
+        int r = Math.min(width, (int) (midX + fw / 2));
+        int b = Math.min(height, (int) (midY + fh * 0.58f));
+
+        if ((r - l) < 60 || (b - t) < 60) {
+            l = Math.max(0, (int) (midX - 90));
+            t = Math.max(0, (int) (midY - 90));
+            r = Math.min(width, (int) (midX + 90));
+            b = Math.min(height, (int) (midY + 90));
+        }
+
+        return new Region(l, t, r, b);
+    }
+
+    /** Fallback region when no face is found: a square around the upper third. */
+    public static Region center(int width, int height) {
+        int cx = width / 2;
+        int cy = height / 3;
+        int sz = Math.min(width, height) / 2;
+
+        int l = Math.max(0, cx - sz / 2);
+        int t = Math.max(0, cy - sz / 2);
+        int r = Math.min(width, cx + sz / 2);
+        int b = Math.min(height, cy + sz / 2);
+        return new Region(l, t, r, b);
+    }
+}
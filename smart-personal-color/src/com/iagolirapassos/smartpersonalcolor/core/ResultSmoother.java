@@ -0,0 +1,93 @@
+package com.iagolirapassos.smartpersonalcolor.core;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sliding-window smoothing of per-frame results.
+ *
+ * The skin color is averaged over the window and every categorical field
+ * (season, undertone, contrast, intensity) is a majority vote, ties going
+ * to the most recent value, so a single noisy frame cannot flip the answer.
+ * Fields that belong together (season, seasonFull, seasonCategory and the
+ * palettes; undertone and undertoneDetail) are taken from the newest
+ * frame that voted for the winner.
+ */
+public final class ResultSmoother {
+
+    private final ArrayDeque<Map<String, Object>> window = new ArrayDeque<>();
+    private int size;
+
+    public ResultSmoother(int size) {
+        this.size = Math.max(1, size);
+    }
+
+    public synchronized void resize(int size) {
+        this.size = Math.max(1, size);
+        while (window.size() > this.size) window.removeLast();
+    }
+
+    public synchronized void clear() {
+        window.clear();
+    }
+
+    /**
+     * Adds the newest frame result and returns the smoothed result over the
+     * window, with framesInWindow set to the number of frames it covers.
+     */
+    public synchronized Map<String, Object> add(Map<String, Object> result) {
+        window.addFirst(result);
+        while (window.size() > size) window.removeLast();
+
+        Map<String, Object> seasonSource = newestWith("season", vote("season"));
+        Map<String, Object> undertoneSource = newestWith("undertone", vote("undertone"));
+
+        Map<String, Object> out = new HashMap<>(seasonSource);
+        out.put("undertone", undertoneSource.get("undertone"));
+        out.put("undertoneDetail", undertoneSource.get("undertoneDetail"));
+        out.put("contrast", vote("contrast"));
+        out.put("intensity", vote("intensity"));
+
+        long r = 0, g = 0, b = 0;
+        for (Map<String, Object> m : window) {
+            r += ((Number) m.get("r")).intValue();
+            g += ((Number) m.get("g")).intValue();
+            b += ((Number) m.get("b")).intValue();
+        }
+        int n = window.size();
+        out.put("r", (int) ((r + n / 2) / n));
+        out.put("g", (int) ((g + n / 2) / n));
+        out.put("b", (int) ((b + n / 2) / n));
+        out.put("framesInWindow", n);
+        return out;
+    }
+
+    /** Most frequent value of key; the window is newest-first, so ties keep the newest. */
+    private Object vote(String key) {
+        Map<Object, Integer> counts = new LinkedHashMap<>();
+        for (Map<String, Object> m : window) {
+            Object v = m.get(key);
+            Integer c = counts.get(v);
+            counts.put(v, c == null ? 1 : c + 1);
+        }
+        Object best = null;
+        int bestCount = 0;
+        for (Map.Entry<Object, Integer> e : counts.entrySet()) {
+            if (e.getValue() > bestCount) {
+                best = e.getKey();
+                bestCount = e.getValue();
+            }
+        }
+        return best;
+    }
+
+    private Map<String, Object> newestWith(String key, Object value) {
+        for (Map<String, Object> m : window) {
+            Object v = m.get(key);
+            if (v == null ? value == null : v.equals(value)) return m;
+        }
+        return window.getFirst();
+    }
+}
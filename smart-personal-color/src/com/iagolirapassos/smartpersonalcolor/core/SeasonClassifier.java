@@ -0,0 +1,159 @@
+package com.iagolirapassos.smartpersonalcolor.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CLASSIFICAÇÃO COMPLETA - 12 ESTAÇÕES SAZONAIS.
+ *
+ * The undertone comes from the CIELAB hue angle of the skin, against the
+ * thresholds of a SeasonModel; the season is the model's nearest centroid,
+ * with a confidence for every season.
+ */
+public final class SeasonClassifier {
+
+    /** Seasons listed in topSeasons. */
+    public static final int TOP_SEASONS = 3;
+
+    private SeasonClassifier() {
+    }
+
+    /** classify with the default season table. */
+    public static Map<String, Object> classify(int[] rgb, Map<String, Object> features, boolean withPalettes) {
+        return classify(rgb, features, withPalettes, SeasonModel.defaults());
+    }
+
+    /**
+     * Undertone, contrast, intensity and season for an average skin color
+     * and the features from FeatureAnalyzer. palettes is empty unless
+     * withPalettes is set. seasonConfidence is the model's confidence in
+     * the season and topSeasons lists the best TOP_SEASONS as
+     * [season, confidence] pairs.
+     */
+    public static Map<String, Object> classify(int[] rgb, Map<String, Object> features, boolean withPalettes,
+                                               SeasonModel model) {
+        int r = rgb[0], g = rgb[1], b = rgb[2];
+
+        // Análise de subtom pelo ângulo de matiz em CIELAB, que não muda com a claridade da pele
+        float[] lab = CieLab.rgbToLab(r, g, b);
+        float chroma = CieLab.chroma(lab);
+        float hueAngle = CieLab.hue(lab);
+        float warmth = Math.max(-1f, Math.min(1f, (hueAngle - model.neutralHue()) / model.hueSpan()));
+
+        String undertone;
+        String undertoneDetail;
+
+        if (chroma < model.minUndertoneChroma()) {
+            // Pouca cor para decidir
+            undertone = "Neutro";
+            undertoneDetail = "Neutro Suave";
+            warmth = 0f;
+        } else if (hueAngle > model.oliveHue() && hueAngle < 180f) {
+            undertone = "Frio";
+            undertoneDetail = "Oliva";
+            warmth = -0.5f;
+        } else if (warmth >= 0.6f) {
+            undertone = "Quente";
+            undertoneDetail = "Dourado Intenso";
+        } else if (warmth >= 0.3f) {
+            undertone = "Quente";
+            undertoneDetail = "Dourado Médio";
+        } else if (chroma >= model.peachChroma() && warmth > -0.1f) {
+            undertone = "Quente";
+            undertoneDetail = "Pêssego";
+            warmth = Math.max(warmth, 0.3f);
+        } else if (warmth >= 0.1f) {
+            undertone = "Quente";
+            undertoneDetail = "Dourado Suave";
+        } else if (warmth > -0.1f) {
+            undertone = "Neutro";
+            undertoneDetail = "Neutro Equilibrado";
+        } else if (warmth > -0.3f) {
+            undertone = "Frio";
+            undertoneDetail = "Rosado Suave";
+        } else if (warmth > -0.6f) {
+            undertone = "Frio";
+            undertoneDetail = "Rosado Médio";
+        } else {
+            undertone = "Frio";
+            undertoneDetail = "Rosado Intenso";
+        }
+
+        float[] hsv = new float[3];
+        ColorMath.rgbToHsv(r, g, b, hsv);
+        float saturation = hsv[1];
+        float value = hsv[2];
+
+        // Obter características da análise facial
+        String contrast = (String) features.get("contrast");
+        String intensity = (String) features.get("intensity");
+        
+        // Posição da cor no espaço do modelo (calor, claridade, croma, contraste, intensidade)
+        Object contrastValue = features.get("contrastValue");
+        Object intensityValue = features.get("intensityValue");
+        float[] x = {
+                warmth,
+                value,
+                saturation,
+                contrastValue instanceof Number
+                        ? Math.min(1f, ((Number) contrastValue).floatValue() / 100f)
+                        : contrastLevel(contrast),
+                intensityValue instanceof Number
+                        ? ((Number) intensityValue).floatValue()
+                        : intensityLevel(intensity)
+        };
+
+        // CLASSIFICAÇÃO NAS 12 ESTAÇÕES SAZONAIS
+        float[] confidence = new float[model.size()];
+        int best = model.score(x, confidence);
+        String season = model.season(best);
+        String seasonFull = model.seasonFull(best);
+        String seasonCategory = model.category(best);
+
+        int k = Math.min(TOP_SEASONS, model.size());
+        int[] top = new int[k];
+        SeasonModel.topK(confidence, model.size(), k, top);
+        List<Object> topSeasons = new ArrayList<>(k);
+        for (int i : top) {
+            topSeasons.add(Arrays.<Object>asList(model.season(i), (double) confidence[i]));
+        }
+
+        List<Object> palettes = withPalettes
+                ? PaletteBuilder.buildAllPalettes(r, g, b, hsv, season, undertone, contrast, intensity)
+                : new ArrayList<Object>();
+
+        Map<String, Object> result = new HashMap<>();
+        result.put("r", r);
+        result.put("g", g);
+        result.put("b", b);
+        result.put("undertone", undertone);
+        result.put("undertoneDetail", undertoneDetail);
+        result.put("contrast", contrast);
+        result.put("intensity", intensity);
+        result.put("season", season);
+        result.put("seasonFull", seasonFull);
+        result.put("seasonCategory", seasonCategory);
+        result.put("palettes", palettes);
+        result.put("seasonConfidence", (double) confidence[best]);
+        result.put("topSeasons", topSeasons);
+        
+        return result;
+    }
+
+    /** Contrast label on the model's scale (CIEDE2000 / 100), for features without contrastValue. */
+    private static float contrastLevel(String contrast) {
+        if ("Alto".equals(contrast)) return 0.35f;
+        if ("Baixo".equals(contrast)) return 0.15f;
+        return 0.25f;
+    }
+
+    /** Intensity label on the model's scale, for features without intensityValue. */
+    private static float intensityLevel(String intensity) {
+        if ("Brilhante".equals(intensity)) return 0.65f;
+        if ("Suave".equals(intensity)) return 0.35f;
+        return 0.5f;
+    }
+}
@@ -0,0 +1,263 @@
+package com.iagolirapassos.smartpersonalcolor.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Season centroids and feature weights behind SeasonClassifier, read from a
+ * small comma-separated table so they can be tuned without a rebuild.
+ *
+ * Every season is a point in (warmth, value, chroma, contrast, intensity)
+ * space. A color is scored against all of them in one pass over flat float
+ * arrays: the weighted squared distance to each centroid goes through a
+ * softmax with the table's temperature, giving a confidence per season that
+ * sums to 1. The table also holds the CIELAB thresholds SeasonClassifier
+ * reads the undertone with. A model is immutable and may be shared between
+ * threads.
+ *
+ * Table format, one entry per line, '#' starts a comment; the weights,
+ * temperature and undertone lines are optional:
+ * <pre>
+ * weights,warmth,value,chroma,contrast,intensity
+ * temperature,t
+ * undertone,neutralHue,hueSpan,oliveHue,minChroma,peachChroma
+ * season,seasonFull,seasonCategory,warmth,value,chroma,contrast,intensity
+ * </pre>
+ */
+public final class SeasonModel {
+
+    /**
+     * Features per season: warmth (-1 cool .. 1 warm, from the CIELAB hue
+     * angle), HSV value and saturation, contrast (mean CIEDE2000 between
+     * skin, eyes and hair, / 100) and intensity (mean C*ab of skin, eyes and
+     * hair on a 0 .. 1 scale where 0.5 is the Brilhante threshold).
+     */
+    public static final int FEATURES = 5;
+
+    /** Values of the undertone line. */
+    public static final int UNDERTONE_THRESHOLDS = 5;
+
+    /**
+     * Built-in table. Its centroids sit on the grid of the original rule
+     * ladder: warm or cool, lighter or darker than V = 0.6, and clear, middle
+     * or soft, where clear and soft come from the skin saturation and the
+     * Brilhante/Suave intensity together as before, with contrast (Baixo,
+     * Médio, Alto) as a light tie-breaker. The undertone line puts neutral
+     * skin at h_ab 50 with full warmth or coolness 15 degrees away, reads
+     * hues past 72 as olive, needs C*ab 8 to call an undertone at all and
+     * C*ab 28 for peach.
+     */
+    public static final String DEFAULT_TABLE = ""
+            + "# feature weights and softmax temperature\n"
+            + "weights,2,3,3,1,2\n"
+            + "temperature,0.02\n"
+            + "# undertone,neutral hue,hue span,olive hue,min chroma,peach chroma\n"
+            + "undertone,50,15,72,8,28\n"
+            + "# season,full name,category,warmth,value,chroma,contrast,intensity\n"
+            + "Bright Spring,Primavera Brilhante,spring_bright,0.75,0.75,0.55,0.35,0.65\n"
+            + "Warm Spring,Primavera Quente,spring_warm,0.75,0.75,0.4,0.25,0.5\n"
+            + "Light Spring,Primavera Clara,spring_light,0.75,0.75,0.25,0.15,0.35\n"
+            + "Warm Autumn,Outono Quente,autumn_warm,0.75,0.45,0.55,0.35,0.65\n"
+            + "Deep Autumn,Outono Escuro,autumn_deep,0.75,0.45,0.4,0.25,0.5\n"
+            + "Soft Autumn,Outono Suave,autumn_soft,0.75,0.45,0.25,0.15,0.35\n"
+            + "Light Summer,Verão Claro,summer_light,-0.5,0.75,0.55,0.35,0.65\n"
+            + "Cool Summer,Verão Frio,summer_cool,-0.5,0.75,0.4,0.25,0.5\n"
+            + "Soft Summer,Verão Suave,summer_soft,-0.5,0.75,0.25,0.15,0.35\n"
+            + "Bright Winter,Inverno Brilhante,winter_bright,-0.5,0.45,0.55,0.35,0.65\n"
+            + "Deep Winter,Inverno Escuro,winter_deep,-0.5,0.45,0.4,0.25,0.5\n"
+            + "Cool Winter,Inverno Frio,winter_cool,-0.5,0.45,0.25,0.15,0.35\n";
+
+    private static final SeasonModel DEFAULT = parse(DEFAULT_TABLE);
+
+    private final String table;
+    private final String[] seasons;
+    private final String[] seasonFull;
+    private final String[] categories;
+    private final float[] centroids;
+    private final float[] weights;
+    private final float temperature;
+    private final float[] undertone;
+
+    private SeasonModel(String table, List<String[]> rows, float[] weights, float temperature, float[] undertone) {
+        int n = rows.size();
+        this.table = table;
+        this.seasons = new String[n];
+        this.seasonFull = new String[n];
+        this.categories = new String[n];
+        this.centroids = new float[n * FEATURES];
+        this.weights = weights;
+        this.temperature = temperature;
+        this.undertone = undertone;
+        for (int i = 0; i < n; i++) {
+            String[] row = rows.get(i);
+            seasons[i] = row[0];
+            seasonFull[i] = row[1];
+            categories[i] = row[2];
+            for (int f = 0; f < FEATURES; f++) {
+                centroids[i * FEATURES + f] = number(row[3 + f]);
+            }
+        }
+    }
+
+    public static SeasonModel defaults() {
+        return DEFAULT;
+    }
+
+    /**
+     * Reads a table in the format above. Throws IllegalArgumentException
+     * naming the line when it is malformed, holds a value that is not a
+     * finite number, or has no season.
+     */
+    public static SeasonModel parse(String table) {
+        List<String[]> rows = new ArrayList<>();
+        float[] weights = {1f, 1f, 1f, 1f, 1f};
+        float temperature = 0.05f;
+        float[] undertone = {50f, 15f, 72f, 8f, 28f};
+
+        String[] lines = table.split("\r?\n");
+        for (int n = 0; n < lines.length; n++) {
+            String line = lines[n].trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] cells = line.split(",", -1);
+            for (int c = 0; c < cells.length; c++) cells[c] = cells[c].trim();
+            try {
+                if (cells[0].equalsIgnoreCase("weights")) {
+                    if (cells.length != 1 + FEATURES) throw new IllegalArgumentException("expected 5 weights");
+                    for (int f = 0; f < FEATURES; f++) weights[f] = number(cells[1 + f]);
+                } else if (cells[0].equalsIgnoreCase("temperature")) {
+                    if (cells.length != 2) throw new IllegalArgumentException("expected one value");
+                    temperature = number(cells[1]);
+                    if (!(temperature > 0f)) throw new IllegalArgumentException("temperature must be positive");
+                } else if (cells[0].equalsIgnoreCase("undertone")) {
+                    if (cells.length != 1 + UNDERTONE_THRESHOLDS) {
+                        throw new IllegalArgumentException("expected neutral hue, hue span, olive hue and 2 chromas");
+                    }
+                    for (int t = 0; t < UNDERTONE_THRESHOLDS; t++) undertone[t] = number(cells[1 + t]);
+                    if (!(undertone[1] > 0f)) throw new IllegalArgumentException("hue span must be positive");
+                } else {
+                    if (cells.length != 3 + FEATURES) {
+                        throw new IllegalArgumentException("expected season, full name, category and 5 values");
+                    }
+                    for (int f = 0; f < FEATURES; f++) number(cells[3 + f]);
+                    rows.add(cells);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("line " + (n + 1) + ": not a finite number", e);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("line " + (n + 1) + ": " + e.getMessage(), e);
+            }
+        }
+        if (rows.isEmpty()) throw new IllegalArgumentException("no seasons in table");
+        return new SeasonModel(table, rows, weights, temperature, undertone);
+    }
+
+    /** A finite float; NaN and Infinity would turn every confidence into NaN. */
+    private static float number(String cell) {
+        float v = Float.parseFloat(cell);
+        if (Float.isNaN(v) || Float.isInfinite(v)) throw new NumberFormatException(cell);
+        return v;
+    }
+
+    /** The table this model was read from. */
+    public String table() {
+        return table;
+    }
+
+    /** Short stable id of the table, for cache keys. */
+    public String signature() {
+        return Integer.toHexString(table.hashCode());
+    }
+
+    /** CIELAB hue angle (h_ab, degrees) of skin with no undertone. */
+    public float neutralHue() {
+        return undertone[0];
+    }
+
+    /** Distance in degrees from neutralHue that counts as fully warm (above) or cool (below). */
+    public float hueSpan() {
+        return undertone[1];
+    }
+
+    /** Hue angle past which (up to 180) skin reads as olive. */
+    public float oliveHue() {
+        return undertone[2];
+    }
+
+    /** C*ab below which the skin has too little color for an undertone. */
+    public float minUndertoneChroma() {
+        return undertone[3];
+    }
+
+    /** C*ab from which near-neutral skin reads as peach. */
+    public float peachChroma() {
+        return undertone[4];
+    }
+
+    public int size() {
+        return seasons.length;
+    }
+
+    public String season(int i) {
+        return seasons[i];
+    }
+
+    public String seasonFull(int i) {
+        return seasonFull[i];
+    }
+
+    public String category(int i) {
+        return categories[i];
+    }
+
+    /**
+     * Writes the confidence of every season for the feature vector x into
+     * confidence (length size()) and returns the index of the best one.
+     */
+    public int score(float[] x, float[] confidence) {
+        int n = seasons.length;
+        int best = 0;
+        float bestDist = Float.MAX_VALUE;
+        for (int i = 0, c = 0; i < n; i++) {
+            float dist = 0f;
+            for (int f = 0; f < FEATURES; f++, c++) {
+                float d = x[f] - centroids[c];
+                dist += weights[f] * d * d;
+            }
+            confidence[i] = dist;
+            if (dist < bestDist) {
+                bestDist = dist;
+                best = i;
+            }
+        }
+
+        // Softmax of -dist / temperature, shifted by the best distance so exp never overflows;
+        // seasons more than e^24 times less likely than the best are left at 0
+        float sum = 0f;
+        for (int i = 0; i < n; i++) {
+            float z = (bestDist - confidence[i]) / temperature;
+            float e = z < -24f ? 0f : (float) Math.exp(z);
+            confidence[i] = e;
+            sum += e;
+        }
+        for (int i = 0; i < n; i++) confidence[i] /= sum;
+        return best;
+    }
+
+    /**
+     * Indices of the k most confident seasons, best first, written to top
+     * (length at least k, k at most size()).
+     */
+    public static void topK(float[] confidence, int n, int k, int[] top) {
+        for (int j = 0; j < k; j++) top[j] = -1;
+        for (int i = 0; i < n; i++) {
+            float c = confidence[i];
+            int j = k - 1;
+            if (top[j] >= 0 && confidence[top[j]] >= c) continue;
+            while (j > 0 && (top[j - 1] < 0 || confidence[top[j - 1]] < c)) {
+                top[j] = top[j - 1];
+                j--;
+            }
+            top[j] = i;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.iagolirapassos.smartpersonalcolor.core;
+
+/**
+ * Receives a mark at the end of every pipeline stage, so callers can time
+ * the engine without the engine knowing how.
+ */
+public interface StageProbe {
+
+    /** Probe that ignores every mark. */
+    StageProbe NONE = new StageProbe() {
+        @Override
+        public void lap(String stage) {
+        }
+    };
+
+    /** Called when stage has just finished; it began at the previous mark. */
+    void lap(String stage);
+}
@@ -0,0 +1,118 @@
+package com.iagolirapassos.smartpersonalcolor.core;
+
+/**
+ * Scratch memory reused between analyses.
+ *
+ * Holds the working frame as a single row-major ARGB buffer plus the planes
+ * background removal needs, so an analysis of an image with the same size
+ * as the previous one allocates almost nothing. A workspace is used by one
+ * thread at a time.
+ */
+public class Workspace {
+
+    private int[] pixels = new int[0];
+    private int[] output = new int[0];
+    private float[] alpha = new float[0];
+    private float[] ellipse = new float[0];
+    private int ellipseW, ellipseH;
+    private float ellipseInner, ellipseOuter;
+    private byte[] alpha8 = new byte[0];
+    private byte[] blur8 = new byte[0];
+    private int[] reciprocals = new int[0];
+    private int reciprocalRadius = -1;
+    private int[] histogram = new int[0];
+    private FaceSegmentation segmentation;
+
+    /** Working frame buffer with room for at least size pixels. */
+    public int[] frame(int size) {
+        if (pixels.length < size) pixels = new int[size];
+        return pixels;
+    }
+
+    /** Output buffer for the matted face crop. */
+    public int[] output(int size) {
+        if (output.length < size) output = new int[size];
+        return output;
+    }
+
+    /** Alpha plane for background removal. */
+    public float[] alpha(int size) {
+        if (alpha.length < size) alpha = new float[size];
+        return alpha;
+    }
+
+    /** 8-bit alpha plane for the fixed-point blur. */
+    public byte[] alpha8(int size) {
+        if (alpha8.length < size) alpha8 = new byte[size];
+        return alpha8;
+    }
+
+    /** Second 8-bit plane the separable blur ping-pongs with. */
+    public byte[] blur8(int size) {
+        if (blur8.length < size) blur8 = new byte[size];
+        return blur8;
+    }
+
+    /**
+     * Q16 reciprocals 65536 / count for every window count a box blur of
+     * this radius can see (1 .. 2 * radius + 1).
+     */
+    public int[] reciprocals(int radius) {
+        if (radius != reciprocalRadius) {
+            int n = 2 * radius + 2;
+            if (reciprocals.length < n) reciprocals = new int[n];
+            for (int c = 1; c < n; c++) {
+                reciprocals[c] = (65536 + c / 2) / c;
+            }
+            reciprocalRadius = radius;
+        }
+        return reciprocals;
+    }
+
+    /** Color histogram for the skin estimate; sampleSkin clears it. */
+    public int[] histogram() {
+        if (histogram.length < ColorSampler.SKIN_HISTOGRAM_BINS) {
+            histogram = new int[ColorSampler.SKIN_HISTOGRAM_BINS];
+        }
+        return histogram;
+    }
+
+    /** Face segmentation reused from face to face. */
+    public FaceSegmentation segmentation() {
+        if (segmentation == null) segmentation = new FaceSegmentation();
+        return segmentation;
+    }
+
+    /**
+     * Elliptical weight map built for a w x h crop and the inner/outer band,
+     * or null if the size or band differs.
+     */
+    public float[] ellipse(int w, int h, float inner, float outer) {
+        return w == ellipseW && h == ellipseH && inner == ellipseInner && outer == ellipseOuter ? ellipse : null;
+    }
+
+    /** Buffer for a new w x h ellipse map; the caller fills it. */
+    public float[] newEllipse(int w, int h, float inner, float outer) {
+        if (ellipse.length < w * h) ellipse = new float[w * h];
+        ellipseW = w;
+        ellipseH = h;
+        ellipseInner = inner;
+        ellipseOuter = outer;
+        return ellipse;
+    }
+
+    /** Drops every buffer; the workspace stays usable and regrows on demand. */
+    public void release() {
+        pixels = new int[0];
+        output = new int[0];
+        alpha = new float[0];
+        ellipse = new float[0];
+        ellipseW = ellipseH = 0;
+        alpha8 = new byte[0];
+        blur8 = new byte[0];
+        reciprocals = new int[0];
+        reciprocalRadius = -1;
+        histogram = new int[0];
+        segmentation = null;
+    }
+}